@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.view;
+
+/**
+ * Stand-in for the Android class on a plain JVM, with only what the
+ * benchmarked library code uses, for events of two pointers.
+ * <p>
+ * Like the Android class, {@link #obtain(MotionEvent)} takes an event from a
+ * pool of up to 10 recycled ones and copies the pointer data into it, so that
+ * code copying events is measured with the same allocations as on a device.
+ */
+public final class MotionEvent {
+
+    public static final int ACTION_MASK = 0xff;
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+    public static final int ACTION_POINTER_DOWN = 5;
+    public static final int ACTION_POINTER_UP = 6;
+    public static final int ACTION_POINTER_ID_MASK = 0xff00;
+    public static final int ACTION_POINTER_ID_SHIFT = 8;
+
+    private static final int MAX_RECYCLED = 10;
+    private static final Object POOL_LOCK = new Object();
+    private static MotionEvent pool;
+    private static int poolSize;
+
+    private MotionEvent next;
+    private int action;
+    private long downTime;
+    private long eventTime;
+    private final float[] x = new float[2];
+    private final float[] y = new float[2];
+    private final float[] pressure = new float[2];
+
+    private MotionEvent() {
+    }
+
+    private static MotionEvent obtain() {
+        synchronized (POOL_LOCK) {
+            if (pool == null) {
+                return new MotionEvent();
+            }
+            MotionEvent event = pool;
+            pool = event.next;
+            event.next = null;
+            poolSize--;
+            return event;
+        }
+    }
+
+    /**
+     * Returns an event of two pointers, at full pressure. Not in the Android
+     * API, which builds such events from pointer coordinates.
+     */
+    public static MotionEvent obtain(long downTime, long eventTime, int action, float x0,
+            float y0, float x1, float y1) {
+        MotionEvent event = obtain();
+        event.downTime = downTime;
+        event.eventTime = eventTime;
+        event.action = action;
+        event.x[0] = x0;
+        event.y[0] = y0;
+        event.x[1] = x1;
+        event.y[1] = y1;
+        event.pressure[0] = 1f;
+        event.pressure[1] = 1f;
+        return event;
+    }
+
+    public static MotionEvent obtain(MotionEvent other) {
+        MotionEvent event = obtain();
+        event.downTime = other.downTime;
+        event.eventTime = other.eventTime;
+        event.action = other.action;
+        System.arraycopy(other.x, 0, event.x, 0, 2);
+        System.arraycopy(other.y, 0, event.y, 0, 2);
+        System.arraycopy(other.pressure, 0, event.pressure, 0, 2);
+        return event;
+    }
+
+    public void recycle() {
+        synchronized (POOL_LOCK) {
+            if (poolSize < MAX_RECYCLED) {
+                poolSize++;
+                next = pool;
+                pool = this;
+            }
+        }
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public long getDownTime() {
+        return downTime;
+    }
+
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public float getX() {
+        return x[0];
+    }
+
+    public float getY() {
+        return y[0];
+    }
+
+    public float getX(int pointerIndex) {
+        return x[pointerIndex];
+    }
+
+    public float getY(int pointerIndex) {
+        return y[pointerIndex];
+    }
+
+    public float getRawX() {
+        return x[0];
+    }
+
+    public float getRawY() {
+        return y[0];
+    }
+
+    public float getPressure(int pointerIndex) {
+        return pressure[pointerIndex];
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Android class on a plain JVM, with only what the
+ * benchmarked library code uses.
+ */
+public class ViewConfiguration {
+
+    private static final ViewConfiguration CONFIGURATION = new ViewConfiguration();
+
+    public static ViewConfiguration get(Context context) {
+        return CONFIGURATION;
+    }
+
+    public int getScaledEdgeSlop() {
+        return 12;
+    }
+}
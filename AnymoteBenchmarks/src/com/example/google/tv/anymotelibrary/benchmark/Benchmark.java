@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.benchmark;
+
+/**
+ * An operation measured by the {@link BenchmarkRunner}.
+ * <p>
+ * With more than one thread, the threads call {@link #run(int)} on the same
+ * instance at the same time, so that shared state is measured under
+ * contention; state private to a thread must be local to {@link #run(int)}.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+    private final int threads;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of the benchmark, unique in the suite.
+     * @param threads the number of threads running the operation.
+     */
+    protected Benchmark(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Prepares the state shared by the threads, before the warmup.
+     */
+    public void setUp() {
+    }
+
+    /**
+     * Runs the operation a number of times.
+     *
+     * @param count the number of operations.
+     * @return a value computed from the results, so that the compiler cannot
+     *         drop the work.
+     */
+    public abstract long run(int count);
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.benchmark;
+
+import com.example.google.tv.anymotelibrary.client.QueueAdmissionBenchmarks;
+import com.example.google.tv.anymotelibrary.connection.DiscoveryProtocolBenchmarks;
+import com.example.google.tv.anymotelibrary.touch.ScaleGestureDetectorBenchmarks;
+import com.example.google.tv.anymotelibrary.util.MetricsBenchmarks;
+import com.example.google.tv.anymotelibrary.util.StagedSortedListBenchmarks;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the benchmarks of the parts of the Anymote library that do not depend
+ * on Android, and prints one result per benchmark as CSV or JSON, to compare
+ * runs with a script.
+ * <p>
+ * Each benchmark runs warmup iterations, whose results are discarded, then
+ * measured iterations of fixed duration. A result is the mean throughput of
+ * the measured iterations, its standard deviation, the mean time per
+ * operation and per thread, and the bytes allocated per operation, or -1 if
+ * the JVM does not count them.
+ * <p>
+ * Options:
+ * <ul>
+ * <li>{@code -format csv|json}: output format, CSV by default.</li>
+ * <li>{@code -filter <text>}: only runs the benchmarks whose name contains
+ * the text.</li>
+ * <li>{@code -warmup <n>}: number of warmup iterations, 3 by default.</li>
+ * <li>{@code -iterations <n>}: number of measured iterations, 5 by
+ * default.</li>
+ * <li>{@code -time <ms>}: duration of an iteration, 1000 ms by default.</li>
+ * </ul>
+ * <p>
+ * The pinch detector runs against stand-ins of the few Android classes it
+ * uses, in {@code android-stubs}. Not covered, since they need the Android
+ * runtime: the send path of {@code AnymoteSender} (it queues
+ * {@code android.os.Message}s on a {@code Handler}), the probe schedule and
+ * socket loop of {@code BroadcastDiscoveryClient}, the gesture handlers,
+ * pairing in {@code ConnectingTask}, and the views of the device picker.
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Maximum number of operations per call to {@link Benchmark#run(int)}.
+     * Calls start with one operation and double until a call lasts a
+     * millisecond, so that slow operations do not overrun the iteration.
+     */
+    private static final int MAX_BATCH = 1024;
+    private static final long BATCH_NANOS = 1000000;
+
+    /** Keeps the results of the benchmarks alive */
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int iterations;
+    private final long iterationMs;
+
+    /**
+     * Result of one benchmark.
+     */
+    static final class Result {
+        final String name;
+        final int threads;
+        final double opsPerSecond;
+        final double opsPerSecondStdDev;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(String name, int threads, double opsPerSecond, double opsPerSecondStdDev,
+                double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.threads = threads;
+            this.opsPerSecond = opsPerSecond;
+            this.opsPerSecondStdDev = opsPerSecondStdDev;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    /**
+     * Operations run and bytes allocated by the threads of a benchmark.
+     */
+    private static final class Allocations {
+        long operations;
+        long bytes;
+    }
+
+    BenchmarkRunner(int warmupIterations, int iterations, long iterationMs) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMs = iterationMs;
+    }
+
+    /**
+     * Returns all the benchmarks.
+     */
+    static List<Benchmark> getSuite() {
+        List<Benchmark> suite = new ArrayList<Benchmark>();
+        suite.addAll(DiscoveryProtocolBenchmarks.create());
+        suite.addAll(MetricsBenchmarks.create());
+        suite.addAll(QueueAdmissionBenchmarks.create());
+        suite.addAll(ScaleGestureDetectorBenchmarks.create());
+        suite.addAll(StagedSortedListBenchmarks.create());
+        return suite;
+    }
+
+    /**
+     * Runs a benchmark.
+     *
+     * @param benchmark the benchmark.
+     * @return the result.
+     * @throws InterruptedException if interrupted while waiting for the
+     *             threads.
+     */
+    Result run(Benchmark benchmark) throws InterruptedException {
+        benchmark.setUp();
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(benchmark, new Allocations());
+        }
+        Allocations allocations = new Allocations();
+        double[] throughputs = new double[iterations];
+        double sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            throughputs[i] = runIteration(benchmark, allocations);
+            sum += throughputs[i];
+        }
+        double mean = sum / iterations;
+        double squares = 0;
+        for (double throughput : throughputs) {
+            squares += (throughput - mean) * (throughput - mean);
+        }
+        double stdDev = iterations > 1 ? Math.sqrt(squares / (iterations - 1)) : 0;
+        double bytesPerOp = allocations.bytes < 0 ? -1
+                : (double) allocations.bytes / allocations.operations;
+        return new Result(benchmark.getName(), benchmark.getThreads(), mean, stdDev,
+                benchmark.getThreads() * 1e9 / mean, bytesPerOp);
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or
+     * -1 if the JVM does not count them.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+        if (!counter.isThreadAllocatedMemorySupported()
+                || !counter.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return counter.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the threads of a benchmark for one iteration.
+     *
+     * @param allocations adds the operations and allocated bytes to it.
+     * @return the number of operations per second, all threads together.
+     */
+    private double runIteration(final Benchmark benchmark, Allocations allocations)
+            throws InterruptedException {
+        int threadCount = benchmark.getThreads();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] operations = new long[threadCount];
+        final long[] results = new long[threadCount];
+        final long[] allocated = new long[threadCount];
+        final long[] stopAt = new long[1];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long deadline = stopAt[0];
+                    long allocatedBefore = getAllocatedBytes();
+                    long count = 0;
+                    long result = 0;
+                    int batch = 1;
+                    long now;
+                    do {
+                        long callStart = System.nanoTime();
+                        result += benchmark.run(batch);
+                        count += batch;
+                        now = System.nanoTime();
+                        if (now - callStart < BATCH_NANOS && batch < MAX_BATCH) {
+                            batch *= 2;
+                        }
+                    } while (now < deadline);
+                    long allocatedAfter = getAllocatedBytes();
+                    allocated[index] = allocatedBefore < 0 || allocatedAfter < 0 ? -1
+                            : allocatedAfter - allocatedBefore;
+                    operations[index] = count;
+                    results[index] = result;
+                }
+            }, benchmark.getName() + "-" + t);
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        stopAt[0] = begin + iterationMs * 1000000;
+        start.countDown();
+        long total = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            total += operations[t];
+            sink += results[t];
+            allocations.operations += operations[t];
+            if (allocations.bytes >= 0) {
+                allocations.bytes = allocated[t] < 0 ? -1 : allocations.bytes + allocated[t];
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        return total * 1e9 / elapsed;
+    }
+
+    static void printCsv(PrintStream out, List<Result> results) {
+        out.println("benchmark,threads,ops_per_s,ops_per_s_stddev,ns_per_op,bytes_per_op");
+        for (Result r : results) {
+            out.println(String.format(Locale.US, "%s,%d,%.1f,%.1f,%.2f,%.1f", r.name, r.threads,
+                    r.opsPerSecond, r.opsPerSecondStdDev, r.nanosPerOp, r.bytesPerOp));
+        }
+    }
+
+    static void printJson(PrintStream out, List<Result> results) {
+        out.println("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            out.print(String.format(Locale.US, "  {\"benchmark\": \"%s\", \"threads\": %d, "
+                    + "\"ops_per_s\": %.1f, \"ops_per_s_stddev\": %.1f, \"ns_per_op\": %.2f, "
+                    + "\"bytes_per_op\": %.1f}", r.name, r.threads, r.opsPerSecond,
+                    r.opsPerSecondStdDev, r.nanosPerOp, r.bytesPerOp));
+            out.println(i < results.size() - 1 ? "," : "");
+        }
+        out.println("]");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String format = "csv";
+        String filter = "";
+        int warmup = 3;
+        int iterations = 5;
+        long timeMs = 1000;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                usage("Missing value for " + option);
+            }
+            String value = args[++i];
+            if ("-format".equals(option)) {
+                format = value;
+            } else if ("-filter".equals(option)) {
+                filter = value;
+            } else if ("-warmup".equals(option)) {
+                warmup = Integer.parseInt(value);
+            } else if ("-iterations".equals(option)) {
+                iterations = Integer.parseInt(value);
+            } else if ("-time".equals(option)) {
+                timeMs = Long.parseLong(value);
+            } else {
+                usage("Unknown option " + option);
+            }
+        }
+        if (!"csv".equals(format) && !"json".equals(format)) {
+            usage("Unknown format " + format);
+        }
+        if (iterations < 1 || warmup < 0 || timeMs < 1) {
+            usage("Iterations and time must be positive");
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, timeMs);
+        List<Result> results = new ArrayList<Result>();
+        for (Benchmark benchmark : getSuite()) {
+            if (benchmark.getName().contains(filter)) {
+                System.err.println("Running " + benchmark.getName() + " on "
+                        + benchmark.getThreads() + " thread(s)");
+                results.add(runner.run(benchmark));
+            }
+        }
+        if ("json".equals(format)) {
+            printJson(System.out, results);
+        } else {
+            printCsv(System.out, results);
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: BenchmarkRunner [-format csv|json] [-filter <text>]"
+                + " [-warmup <n>] [-iterations <n>] [-time <ms>]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays trackball traces through a {@link DpadAccumulator} and checks the
+ * dpad steps it emits. A trace is a list of {@code {time, dx, dy}} samples, as
+ * the trackball reports them to {@code TrackballHandler}.
+ * <p>
+ * Prints one line per trace, and exits with status 1 if any failed.
+ */
+public final class DpadAccumulatorTraceTest {
+
+    /** Threshold of the library, {@code R.integer.dpad_threshold} / 100 */
+    private static final float THRESHOLD = 0.8f;
+
+    /** Interval at which a moving trackball reports */
+    private static final long SAMPLE_MS = 10;
+
+    private static int failures;
+
+    private DpadAccumulatorTraceTest() {
+    }
+
+    /**
+     * Steps emitted by a trace, by direction.
+     */
+    static final class Steps {
+        int right, left, down, up;
+
+        /** Number of steps emitted by the first sample */
+        int first;
+
+        @Override
+        public String toString() {
+            return "right=" + right + " left=" + left + " down=" + down + " up=" + up
+                    + " first=" + first;
+        }
+    }
+
+    /**
+     * Builds a trace of samples at {@link #SAMPLE_MS}, each moving by the same
+     * amount.
+     *
+     * @param start time of the first sample, in milliseconds.
+     */
+    static List<float[]> steady(long start, int count, float dx, float dy) {
+        List<float[]> trace = new ArrayList<float[]>();
+        for (int i = 0; i < count; i++) {
+            trace.add(new float[] {
+                    start + i * SAMPLE_MS, dx, dy });
+        }
+        return trace;
+    }
+
+    /**
+     * Builds a trace of samples at the given interval along the horizontal
+     * axis.
+     *
+     * @param start time of the first sample, in milliseconds.
+     */
+    static List<float[]> drift(long start, int count, long intervalMs, float dx) {
+        List<float[]> trace = new ArrayList<float[]>();
+        for (int i = 0; i < count; i++) {
+            trace.add(new float[] {
+                    start + i * intervalMs, dx, 0 });
+        }
+        return trace;
+    }
+
+    static Steps replay(DpadAccumulator accumulator, List<float[]> trace) {
+        Steps steps = new Steps();
+        for (int i = 0; i < trace.size(); i++) {
+            float[] sample = trace.get(i);
+            accumulator.update(sample[1], sample[2], (long) sample[0]);
+            int x = accumulator.getStepsX();
+            int y = accumulator.getStepsY();
+            if (x > 0) {
+                steps.right += x;
+            } else {
+                steps.left -= x;
+            }
+            if (y > 0) {
+                steps.down += y;
+            } else {
+                steps.up -= y;
+            }
+            if (i == 0) {
+                steps.first = Math.abs(x) + Math.abs(y);
+            }
+        }
+        return steps;
+    }
+
+    private static void check(String trace, boolean passed, Steps steps) {
+        System.out.println((passed ? "PASS " : "FAIL ") + trace + ": " + steps);
+        if (!passed) {
+            failures++;
+        }
+    }
+
+    /**
+     * A flick after a pause must step at once: its first sample is as fast as
+     * the ones that follow. The burst of 5 steps is used up by the second
+     * sample.
+     */
+    static void testFlickAfterIdle() {
+        DpadAccumulator accumulator = new DpadAccumulator(THRESHOLD);
+        replay(accumulator, steady(1000, 5, 0.2f, 0));
+        List<float[]> flick = steady(5000, 4, 0.5f, 0);
+        Steps steps = replay(accumulator, flick);
+        check("flickAfterIdle", steps.first == 2 && steps.right == 5 && steps.left == 0, steps);
+    }
+
+    /**
+     * The first sample ever is handled like the first after a pause.
+     */
+    static void testFirstFlick() {
+        Steps steps = replay(new DpadAccumulator(THRESHOLD), steady(123456, 3, 0, -0.5f));
+        check("firstFlick", steps.first == 2 && steps.up == 5 && steps.down == 0, steps);
+    }
+
+    /**
+     * A slow drift needs more than its distance in thresholds for a step.
+     */
+    static void testSlowDrift() {
+        List<float[]> trace = new ArrayList<float[]>();
+        for (int i = 0; i < 40; i++) {
+            trace.add(new float[] {
+                    i * 100, 0.1f, 0 });
+        }
+        // 5 thresholds of motion, at a quarter of the reference speed: the
+        // minimum gain halves it.
+        Steps steps = replay(new DpadAccumulator(THRESHOLD), trace);
+        check("slowDrift", steps.right == 2 && steps.first == 0, steps);
+    }
+
+    /**
+     * A long fast flick is capped to the burst plus the maximum rate.
+     */
+    static void testRateLimit() {
+        Steps steps = replay(new DpadAccumulator(THRESHOLD), steady(0, 100, 0, 2f));
+        // A burst of 5, then 15 per second for 99 intervals of 10 ms.
+        check("rateLimit", steps.down == 5 + 14 && steps.first == 5, steps);
+    }
+
+    /**
+     * Motion left over before a pause is forgotten. Each drift alone stays
+     * under the threshold, about 0.59 and 0.51 of it, and together they would
+     * cross it.
+     */
+    static void testIdleReset() {
+        DpadAccumulator accumulator = new DpadAccumulator(THRESHOLD);
+        Steps before = replay(accumulator, drift(0, 6, 40, 0.1f));
+        Steps after = replay(accumulator, drift(1000, 5, 40, 0.1f));
+        check("idleReset", before.right == 0 && after.right == 0, after);
+    }
+
+    /**
+     * A click forgets the motion accumulated before it. Each drift alone stays
+     * under the threshold, about 0.63 and 0.45 of it, and together they cross
+     * it, as the same trace without the click shows.
+     */
+    static void testResetOnClick() {
+        DpadAccumulator accumulator = new DpadAccumulator(THRESHOLD);
+        Steps before = replay(accumulator, drift(0, 6, SAMPLE_MS, -0.06f));
+        accumulator.reset();
+        Steps after = replay(accumulator, drift(6 * SAMPLE_MS, 4, SAMPLE_MS, -0.06f));
+        check("resetOnClick", before.left == 0 && after.left == 0, after);
+
+        accumulator = new DpadAccumulator(THRESHOLD);
+        List<float[]> trace = drift(0, 6, SAMPLE_MS, -0.06f);
+        trace.addAll(drift(6 * SAMPLE_MS, 4, SAMPLE_MS, -0.06f));
+        Steps steps = replay(accumulator, trace);
+        check("noClick", steps.left == 1 && steps.right == 0, steps);
+    }
+
+    /**
+     * Turning from one axis to the other does not carry the motion over: the
+     * first vertical step comes once the burst has refilled by one.
+     */
+    static void testTurn() {
+        DpadAccumulator accumulator = new DpadAccumulator(THRESHOLD);
+        List<float[]> trace = steady(0, 6, 0.3f, 0);
+        trace.addAll(steady(6 * SAMPLE_MS, 6, 0, 0.3f));
+        Steps steps = replay(accumulator, trace);
+        check("turn", steps.right == 5 && steps.down == 1 && steps.left == 0 && steps.up == 0,
+                steps);
+    }
+
+    public static void main(String[] args) {
+        testFlickAfterIdle();
+        testFirstFlick();
+        testSlowDrift();
+        testRateLimit();
+        testIdleReset();
+        testResetOnClick();
+        testTurn();
+        System.out.println(failures == 0 ? "All traces passed" : failures + " trace(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
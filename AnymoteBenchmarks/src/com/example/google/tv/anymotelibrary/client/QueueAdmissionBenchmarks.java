@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.example.google.tv.anymotelibrary.benchmark.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the admission of messages in the send queue, which every
+ * event sent goes through: with room, from several threads at once, and with
+ * a full queue rejecting events.
+ */
+public final class QueueAdmissionBenchmarks {
+
+    private static final int CAPACITY = 64;
+    private static final long BLOCK_TIMEOUT_MS = 250;
+
+    private static final int[] THREAD_COUNTS = {
+            1, 4 };
+
+    private QueueAdmissionBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int threads : THREAD_COUNTS) {
+            benchmarks.add(newAdmitReleaseBenchmark("queue.admitRelease.continuous",
+                    threads, QueueAdmission.CONTINUOUS));
+            benchmarks.add(newAdmitReleaseBenchmark("queue.admitRelease.discrete",
+                    threads, QueueAdmission.DISCRETE));
+        }
+        benchmarks.add(new Benchmark("queue.full.dropContinuous", 1) {
+            private final QueueAdmission admission = newFullQueue();
+
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    if (admission.admit(QueueAdmission.CONTINUOUS)) {
+                        result++;
+                    }
+                }
+                return result;
+            }
+        });
+        benchmarks.add(new Benchmark("queue.full.rejectDiscreteFailFast", 1) {
+            private final QueueAdmission admission = newFullQueue();
+
+            @Override
+            public void setUp() {
+                admission.setBlocking(false, 0);
+            }
+
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    if (admission.admit(QueueAdmission.DISCRETE)) {
+                        result++;
+                    }
+                }
+                return result;
+            }
+        });
+        return benchmarks;
+    }
+
+    private static Benchmark newAdmitReleaseBenchmark(String name, int threads,
+            final int kind) {
+        return new Benchmark(name, threads) {
+            private final QueueAdmission admission =
+                    new QueueAdmission(CAPACITY, BLOCK_TIMEOUT_MS);
+
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    if (admission.admit(kind)) {
+                        result++;
+                        admission.release();
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    private static QueueAdmission newFullQueue() {
+        QueueAdmission admission = new QueueAdmission(CAPACITY, BLOCK_TIMEOUT_MS);
+        for (int i = 0; i < CAPACITY; i++) {
+            admission.admit(QueueAdmission.ALWAYS);
+        }
+        return admission;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import com.example.google.tv.anymotelibrary.benchmark.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the discovery messages: building probes and parsing the
+ * answers of TVs, which a scan does for every packet received.
+ */
+public final class DiscoveryProtocolBenchmarks {
+
+    private static final String SERVICE = "_anymote._tcp";
+    private static final byte[] RESPONSE_VALID = (SERVICE + " LivingRoomTV 9551\n").getBytes();
+    private static final byte[] RESPONSE_MALFORMED =
+            (SERVICE + " Living Room TV 9551\n").getBytes();
+    private static final byte[] RESPONSE_OTHER_SERVICE =
+            "_other._tcp LivingRoomTV 9551\n".getBytes();
+
+    private DiscoveryProtocolBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("discovery.splitTokens", 1) {
+            @Override
+            public long run(int count) {
+                String response = new String(RESPONSE_VALID);
+                String[] tokens = new String[3];
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    result += DiscoveryProtocol.splitTokens(response, tokens);
+                }
+                return result;
+            }
+        });
+        benchmarks.add(newParseBenchmark("discovery.parseResponse", RESPONSE_VALID));
+        benchmarks.add(newParseBenchmark(
+                "discovery.parseResponse.malformed", RESPONSE_MALFORMED));
+        benchmarks.add(newParseBenchmark(
+                "discovery.parseResponse.otherService", RESPONSE_OTHER_SERVICE));
+        benchmarks.add(new Benchmark("discovery.makeRequestMessage", 1) {
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    result += DiscoveryProtocol.makeRequestMessage(SERVICE, 40000 + (i & 1023))
+                            .length;
+                }
+                return result;
+            }
+        });
+        return benchmarks;
+    }
+
+    private static Benchmark newParseBenchmark(String name, final byte[] response) {
+        return new Benchmark(name, 1) {
+            @Override
+            public long run(int count) {
+                String[] tokens = new String[3];
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    result += DiscoveryProtocol.parseResponse(
+                            SERVICE, response, response.length, tokens);
+                }
+                return result;
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.touch;
+
+import android.content.Context;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.example.google.tv.anymotelibrary.benchmark.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks of the pinch detector of the touch pad, fed with the events of a
+ * two-finger pinch over and over. One operation is one touch event. The
+ * Android classes it uses are the stand-ins of this project.
+ */
+public final class ScaleGestureDetectorBenchmarks {
+
+    /** Number of moves of the pinch, at 60 events per second */
+    private static final int MOVE_COUNT = 60;
+    private static final long EVENT_INTERVAL_MS = 16;
+
+    private ScaleGestureDetectorBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        // The touch pad takes every scale, the other listener waits for 5%.
+        benchmarks.add(newPinchBenchmark("scaleGesture.pinch.everyEvent", 1f));
+        benchmarks.add(newPinchBenchmark("scaleGesture.pinch.accumulated", 1.05f));
+        return benchmarks;
+    }
+
+    /**
+     * Returns the events of a pinch: the second finger goes down, both spread
+     * apart around the center of the display, and the second finger goes up.
+     */
+    static MotionEvent[] newPinch() {
+        MotionEvent[] events = new MotionEvent[MOVE_COUNT + 2];
+        final int secondPointer = 1 << MotionEvent.ACTION_POINTER_ID_SHIFT;
+        long time = 0;
+        events[0] = MotionEvent.obtain(0, time, MotionEvent.ACTION_POINTER_DOWN | secondPointer,
+                540, 400, 740, 400);
+        for (int i = 1; i <= MOVE_COUNT; i++) {
+            time += EVENT_INTERVAL_MS;
+            float spread = 100 + 4 * i;
+            events[i] = MotionEvent.obtain(0, time, MotionEvent.ACTION_MOVE,
+                    640 - spread, 400 - i, 640 + spread, 400 + i);
+        }
+        float spread = 100 + 4 * MOVE_COUNT;
+        events[MOVE_COUNT + 1] = MotionEvent.obtain(0, time + EVENT_INTERVAL_MS,
+                MotionEvent.ACTION_POINTER_UP | secondPointer, 640 - spread, 400 - MOVE_COUNT,
+                640 + spread, 400 + MOVE_COUNT);
+        return events;
+    }
+
+    /**
+     * @param minScale scale from which the listener takes the accumulated
+     *            scale, and the detector updates the previous event.
+     */
+    private static Benchmark newPinchBenchmark(String name, final float minScale) {
+        return new Benchmark(name, 1) {
+            private final MotionEvent[] events = newPinch();
+            private ScaleGestureDetector detector;
+            private int next;
+            private long scales;
+
+            @Override
+            public void setUp() {
+                detector = new ScaleGestureDetectorImpl(new View(new Context()),
+                        new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                            @Override
+                            public boolean onScale(ScaleGestureDetector detector) {
+                                float scale = detector.getScaleFactor();
+                                if (scale < minScale && scale > 1 / minScale) {
+                                    return false;
+                                }
+                                scales++;
+                                return true;
+                            }
+                        });
+            }
+
+            @Override
+            public long run(int count) {
+                for (int i = 0; i < count; i++) {
+                    detector.onTouchEvent(events[next]);
+                    next = next + 1 < events.length ? next + 1 : 0;
+                }
+                return scales;
+            }
+        };
+    }
+}
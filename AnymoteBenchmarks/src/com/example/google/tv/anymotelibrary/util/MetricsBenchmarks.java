@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import com.example.google.tv.anymotelibrary.benchmark.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the connection statistics, which are updated for every
+ * message sent or acknowledged, alone and from several threads at once.
+ */
+public final class MetricsBenchmarks {
+
+    private static final int[] THREAD_COUNTS = {
+            1, 4 };
+
+    private MetricsBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (int threads : THREAD_COUNTS) {
+            benchmarks.add(newStripedCounterBenchmark(threads));
+            benchmarks.add(newAtomicLongBenchmark(threads));
+            benchmarks.add(newRecordBenchmark(threads));
+        }
+        benchmarks.add(new Benchmark("LatencyHistogram.getPercentile", 1) {
+            private final LatencyHistogram histogram = new LatencyHistogram();
+
+            @Override
+            public void setUp() {
+                long seed = 42;
+                for (int i = 0; i < 100000; i++) {
+                    seed = next(seed);
+                    histogram.record(seed & 0xffff);
+                }
+            }
+
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    result += histogram.getPercentile(0.99);
+                }
+                return result;
+            }
+        });
+        return benchmarks;
+    }
+
+    private static Benchmark newStripedCounterBenchmark(int threads) {
+        return new Benchmark("StripedCounter.increment", threads) {
+            private final StripedCounter counter = new StripedCounter();
+
+            @Override
+            public long run(int count) {
+                for (int i = 0; i < count; i++) {
+                    counter.increment();
+                }
+                return count;
+            }
+        };
+    }
+
+    /**
+     * The single atomic counter that {@link StripedCounter} replaces, as a
+     * baseline.
+     */
+    private static Benchmark newAtomicLongBenchmark(int threads) {
+        return new Benchmark("AtomicLong.increment", threads) {
+            private final AtomicLong counter = new AtomicLong();
+
+            @Override
+            public long run(int count) {
+                for (int i = 0; i < count; i++) {
+                    counter.incrementAndGet();
+                }
+                return count;
+            }
+        };
+    }
+
+    private static Benchmark newRecordBenchmark(int threads) {
+        return new Benchmark("LatencyHistogram.record", threads) {
+            private final LatencyHistogram histogram = new LatencyHistogram();
+
+            @Override
+            public long run(int count) {
+                long seed = System.nanoTime() | 1;
+                for (int i = 0; i < count; i++) {
+                    seed = next(seed);
+                    // Microseconds, up to about a second.
+                    histogram.record(seed & 0xfffff);
+                }
+                return seed;
+            }
+        };
+    }
+
+    /**
+     * Xorshift generator, cheaper than {@link java.util.Random} so that it
+     * does not dominate the measure.
+     */
+    private static long next(long seed) {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return seed;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import com.example.google.tv.anymotelibrary.benchmark.Benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks of the list of the device picker while a scan finds 500 TVs, in
+ * the order they answer. One operation fills a list with all of them.
+ * <p>
+ * Devices are compared by name, so they are stood in for by their names.
+ */
+public final class StagedSortedListBenchmarks {
+
+    private static final int DEVICE_COUNT = 500;
+
+    private static final String[] DEVICES = new String[DEVICE_COUNT];
+
+    static {
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            DEVICES[i] = String.format("Living Room TV %03d", i);
+        }
+        Collections.shuffle(Arrays.asList(DEVICES), new Random(42));
+    }
+
+    private StagedSortedListBenchmarks() {
+    }
+
+    public static List<Benchmark> create() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        // All the answers in one frame, a few per frame, one per frame.
+        benchmarks.add(newAddBenchmark("deviceList.add500.oneFrame", DEVICE_COUNT));
+        benchmarks.add(newAddBenchmark("deviceList.add500.16PerFrame", 16));
+        benchmarks.add(newAddBenchmark("deviceList.add500.1PerFrame", 1));
+        benchmarks.add(new Benchmark("deviceList.replaceAll500", 1) {
+            private final List<String> devices = Arrays.asList(DEVICES);
+
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    StagedSortedList<String> list = new StagedSortedList<String>();
+                    list.replaceAll(devices);
+                    list.applyChanges();
+                    result += list.size();
+                }
+                return result;
+            }
+        });
+        return benchmarks;
+    }
+
+    /**
+     * Adds the devices, applying the changes as the adapter does when it
+     * notifies the list view.
+     *
+     * @param perFrame number of devices added between two notifications.
+     */
+    private static Benchmark newAddBenchmark(String name, final int perFrame) {
+        return new Benchmark(name, 1) {
+            @Override
+            public long run(int count) {
+                long result = 0;
+                for (int i = 0; i < count; i++) {
+                    StagedSortedList<String> list = new StagedSortedList<String>();
+                    for (int j = 0; j < DEVICE_COUNT; j++) {
+                        list.add(DEVICES[j]);
+                        if ((j + 1) % perFrame == 0) {
+                            list.applyChanges();
+                        }
+                    }
+                    list.applyChanges();
+                    result += list.size();
+                }
+                return result;
+            }
+        };
+    }
+}
@@ -15,43 +15,118 @@
 package com.example.google.tv.anymotelibrary.client;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask;
+import com.example.google.tv.anymotelibrary.connection.ConnectionMetrics;
+import com.example.google.tv.anymotelibrary.connection.HandshakeStats;
 import com.example.google.tv.anymotelibrary.connection.KeyStoreManager;
 import com.example.google.tv.anymotelibrary.connection.PairingActivity;
 import com.example.google.tv.anymotelibrary.connection.PairingPINDialogBuilder;
+import com.example.google.tv.anymotelibrary.connection.PresenceMonitor;
+import com.example.google.tv.anymotelibrary.connection.SessionRecorder;
 import com.example.google.tv.anymotelibrary.connection.TvDevice;
 import com.example.google.tv.anymotelibrary.connection.TvDiscoveryService;
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask.ConnectionListener;
 import com.example.google.tv.anymotelibrary.connection.PairingPINDialogBuilder.PinListener;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
+import com.example.google.tv.anymotelibrary.util.HandlerExecutor;
+import com.example.google.tv.anymotelibrary.util.ListenerList;
 
+import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.net.ssl.SSLSocket;
 
 /**
  * The central point to connect to Anymote serivce running on a Google TV device
  * and send commands. The clients of this library should bind to this service
  * and implement the ClientListener interface provided in this service.
+ * <p>
+ * Listeners are called on their own executor, the main thread by default, so
+ * a slow listener never holds up the connection.
+ * <p>
+ * When the network goes down, the connection is suspended right away rather
+ * than after missed pings. When it comes back, the connection is checked with
+ * a ping while a new one to the same TV is opened, and the TV is looked up
+ * again in case its address changed.
  */
 public class AnymoteClientService extends Service implements ConnectionListener {
     private static final String LOG_TAG = "AnymoteConnectionService";
-    private List<ClientListener> clientListeners;
-    private List<PairingListener> pairingListeners;
-
+    private static final String PREFS_LAST_DEVICE = "LastDevice";
+
+    /** Time a resumed connection has to acknowledge a ping */
+    private static final long REVALIDATE_TIMEOUT_MS = 1000;
+    private final ListenerList<ClientListener> clientListeners =
+            new ListenerList<ClientListener>();
+    private final ListenerList<PairingListener> pairingListeners =
+            new ListenerList<PairingListener>();
+    private final ListenerList<SuspendListener> suspendListeners =
+            new ListenerList<SuspendListener>();
+
+    // The connection state is only used on the main thread: the connecting
+    // task reports to it from its worker, the socket reader or the event loop.
     private ConnectingTask connectingTask;
 
-    private Context context;
     private TvDiscoveryService tvDiscovery;
     private TvDevice target;
+    private TvDevice lastDevice;
+    private AnymoteSender lastSender;
+    private int reconnectCount;
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+    private volatile SessionRecorder sessionRecorder;
     private KeyStoreManager mKeyStoreManager;
-    private static AnymoteSender anymoteSender;
+    private boolean destroyed;
+
+    /** Written on the main thread, read from any thread */
+    private static volatile AnymoteSender anymoteSender;
+
+    /** Time the service was created, until the first connection */
+    private long launchTime = -1;
+
+    /** Connection to the last used device, opened ahead of time */
+    private PrewarmTask prewarmedSocket;
+    private TvDevice prewarmedDevice;
+    private long prewarmedSince;
+
+    /** Whether the network is down, and whether a connection is recovering */
+    private boolean networkDown;
+    private volatile boolean recovering;
+
+    /** Device to reconnect to if the recovering connection is lost */
+    private TvDevice recoveryDevice;
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                getTvDiscovery().getPresenceMonitor().setScreenOn(true);
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                getTvDiscovery().getPresenceMonitor().setScreenOn(false);
+            } else {
+                onNetworkChanged(isNetworkConnected());
+            }
+        }
+    };
 
     /**
      * All client applications should implement this listener. It provides
@@ -96,9 +171,31 @@ public class AnymoteClientService extends Service implements ConnectionListener
 
     }
 
+    /**
+     * The Listener for suspensions of the connection while the network is
+     * down. Messages sent meanwhile are replayed once it is resumed.
+     */
+    public interface SuspendListener {
+
+        /**
+         * This callback method is called when the network is lost while
+         * connected.
+         */
+        public void onSuspended();
+
+        /**
+         * This callback method is called when the connection works again
+         * after the network came back. If it does not, the connection is
+         * reestablished and ClientListener.onConnected is called instead.
+         */
+        public void onResumed();
+
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
+        launchTime = SystemClock.uptimeMillis();
         initialize();
     }
 
@@ -113,10 +210,23 @@ public class AnymoteClientService extends Service implements ConnectionListener
 
     @Override
     public void onDestroy() {
+        // Connection events posted since are ignored.
+        destroyed = true;
         if (connectingTask != null) {
-            connectingTask.disconnect();
+            connectingTask.cancel();
+            connectingTask = null;
+        }
+        // Static, so it would keep this service and its connection alive.
+        anymoteSender = null;
+        lastSender = null;
+        discardPrewarmedSocket();
+        unregisterReceiver(connectivityReceiver);
+        synchronized (this) {
+            if (tvDiscovery != null) {
+                tvDiscovery.shutdown();
+                tvDiscovery = null;
+            }
         }
-        tvDiscovery = null;
         super.onDestroy();
     }
 
@@ -137,12 +247,28 @@ public class AnymoteClientService extends Service implements ConnectionListener
         public AnymoteClientService getService() {
             return AnymoteClientService.this;
         }
+
+        /**
+         * Health metrics of the current connection.
+         * 
+         * @return snapshot of the metrics, or {@code null} if there is no
+         *         connection.
+         */
+        public ConnectionMetrics.Snapshot getConnectionMetrics() {
+            return AnymoteClientService.this.getConnectionMetrics();
+        }
+
+        /**
+         * Timings of the phases of the connection attempts.
+         * 
+         * @return the timings.
+         */
+        public HandshakeStats getHandshakeStats() {
+            return handshakeStats;
+        }
     }
 
     private void initialize() {
-        clientListeners = new ArrayList<ClientListener>();
-        pairingListeners = new ArrayList<PairingListener>();
-
         try {
             mKeyStoreManager = new KeyStoreManager();
             mKeyStoreManager.initialize(this);
@@ -151,6 +277,19 @@ public class AnymoteClientService extends Service implements ConnectionListener
             stopSelf();
             return;
         }
+        TvDevice device = TvDevice.loadFrom(getSharedPreferences(PREFS_LAST_DEVICE, MODE_PRIVATE));
+        prewarmConnection(device);
+        PresenceMonitor presenceMonitor = getTvDiscovery().getPresenceMonitor();
+        if (device != null) {
+            presenceMonitor.add(device, false);
+        }
+        presenceMonitor.start();
+
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(connectivityReceiver, filter);
 
         Intent intent2 = new Intent();
         intent2.setComponent(new ComponentName(
@@ -161,22 +300,232 @@ public class AnymoteClientService extends Service implements ConnectionListener
         getApplication().startActivity(intent2);
     }
 
+    /**
+     * Connects to a device ahead of time: the last used one, in parallel with
+     * discovery, since the user most often picks it again, or the connected
+     * one, in case its connection did not survive a network change.
+     * 
+     * @param device the device, or {@code null} to do nothing.
+     */
+    private void prewarmConnection(final TvDevice device) {
+        if (device == null) {
+            return;
+        }
+        discardPrewarmedSocket();
+        PrewarmTask task = new PrewarmTask(device, mKeyStoreManager);
+        prewarmedDevice = device;
+        prewarmedSocket = task;
+        prewarmedSince = SystemClock.uptimeMillis();
+        EventLoop.getWorkers().execute(task);
+    }
+
+    /**
+     * Closes the connection opened ahead of time, if it was not used.
+     */
+    private void discardPrewarmedSocket() {
+        final PrewarmTask socket = prewarmedSocket;
+        prewarmedSocket = null;
+        prewarmedDevice = null;
+        if (socket != null) {
+            socket.discard();
+        }
+    }
+
+    /**
+     * Opens a connection ahead of time. A discarded connection is closed by
+     * the task once it is open, rather than by a thread waiting for it.
+     */
+    private static final class PrewarmTask extends FutureTask<SSLSocket> {
+        private boolean discarded;
+
+        PrewarmTask(final TvDevice device, final KeyStoreManager keyStore) {
+            super(new Callable<SSLSocket>() {
+                public SSLSocket call() throws Exception {
+                    return ConnectingTask.openSocket(device, keyStore);
+                }
+            });
+        }
+
+        /**
+         * Closes the connection as soon as it is open, or now if it is.
+         */
+        void discard() {
+            synchronized (this) {
+                discarded = true;
+                if (!isDone()) {
+                    return;
+                }
+            }
+            EventLoop.getWorkers().execute(new Runnable() {
+                public void run() {
+                    closeSocket();
+                }
+            });
+        }
+
+        @Override
+        protected void done() {
+            synchronized (this) {
+                if (!discarded) {
+                    return;
+                }
+            }
+            closeSocket();
+        }
+
+        /**
+         * Closes the connection once the task is done. Closing twice is
+         * harmless.
+         */
+        private void closeSocket() {
+            try {
+                get().close();
+            } catch (ExecutionException e) {
+                // Connection failed, nothing to close.
+            } catch (CancellationException e) {
+                // Never connected.
+            } catch (InterruptedException e) {
+                // Cannot happen, the task is done.
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "(IOE) Failed to close socket", e);
+            }
+        }
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager connectivity =
+                (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivity.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Suspends the connection as soon as the network is lost, and recovers
+     * it once the network is back.
+     * 
+     * @param connected whether a network is connected.
+     */
+    private void onNetworkChanged(boolean connected) {
+        final AnymoteSender sender = anymoteSender;
+        if (!connected) {
+            networkDown = true;
+            if (sender != null && !sender.isSuspended() && connectingTask != null) {
+                Log.i(LOG_TAG, "Network lost, suspending connection");
+                connectingTask.onConnectionSuspended();
+                suspendListeners.dispatch(new ListenerList.Event<SuspendListener>() {
+                    public void deliver(SuspendListener listener) {
+                        listener.onSuspended();
+                    }
+                });
+            }
+        } else if (networkDown) {
+            networkDown = false;
+            if (tvDiscovery != null) {
+                tvDiscovery.onNetworkChanged();
+            }
+            if (sender != null && sender.isSuspended()) {
+                Log.i(LOG_TAG, "Network back, checking connection");
+                recovering = true;
+                recoveryDevice = target;
+                // Whichever of these completes first wins.
+                prewarmConnection(target);
+                rediscover(target);
+                sender.resume(REVALIDATE_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Looks for a device again, and connects to its new address if it
+     * changed while the connection is recovering.
+     */
+    private void rediscover(final TvDevice device) {
+        final TvDiscoveryService discovery = getTvDiscovery();
+        EventLoop.getWorkers().execute(new Runnable() {
+            public void run() {
+                List<TvDevice> devices = discovery.discoverTvs();
+                if (devices == null) {
+                    return;
+                }
+                for (final TvDevice found : devices) {
+                    if (found.equals(device)
+                            && !found.getLocation().equals(device.getLocation())) {
+                        HandlerExecutor.mainThread().execute(new Runnable() {
+                            public void run() {
+                                if (!recovering) {
+                                    return;
+                                }
+                                Log.i(LOG_TAG, "Device moved to " + found.getLocation());
+                                recoveryDevice = found;
+                                if (target == null) {
+                                    connect(found, AnymoteClientService.this);
+                                }
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Suspended connection was checked and works.
+     */
+    @Override
+    public void onConnectionResumed() {
+        HandlerExecutor.mainThread().execute(new Runnable() {
+            public void run() {
+                recovering = false;
+                discardPrewarmedSocket();
+            }
+        });
+        suspendListeners.dispatch(new ListenerList.Event<SuspendListener>() {
+            public void deliver(SuspendListener listener) {
+                listener.onResumed();
+            }
+        });
+    }
+
     /**
      * Service lost existing connection.
      */
     @Override
-    public void onConnectionDisconnected() {
-        this.anymoteSender = null;
-        if (target != null) {
-            for (ClientListener listener : clientListeners) {
-                listener.onDisconnected();
+    public void onConnectionDisconnected(final AnymoteSender sender) {
+        HandlerExecutor.mainThread().execute(new Runnable() {
+            public void run() {
+                if (!destroyed) {
+                    handleConnectionDisconnected(sender);
+                }
             }
+        });
+    }
+
+    private void handleConnectionDisconnected(AnymoteSender sender) {
+        if (!isCurrent(sender)) {
+            // Connection of a task cancelled since.
+            return;
+        }
+        anymoteSender = null;
+        if (recovering) {
+            // Reconnect, using the connection opened when the network came
+            // back. Clients are notified once connected.
+            target = null;
+            connect(recoveryDevice, AnymoteClientService.this);
+            return;
+        }
+        if (target != null) {
+            clientListeners.dispatch(new ListenerList.Event<ClientListener>() {
+                public void deliver(ClientListener listener) {
+                    listener.onDisconnected();
+                }
+            });
             target = null;
         }
     }
 
     /**
-     * Initiate new connection to specified TV device.
+     * Initiate new connection to specified TV device. Must be called on the
+     * main thread.
      * 
      * @param device the device to connect to.
      * @param activity which uses the connection.
@@ -186,8 +535,6 @@ public class AnymoteClientService extends Service implements ConnectionListener
         if (target != null && target.equals(device)) {
             return true;
         }
-        this.context = activity;
-
         if (connectingTask != null) {
             connectingTask.cancel();
             connectingTask = null;
@@ -196,6 +543,32 @@ public class AnymoteClientService extends Service implements ConnectionListener
         target = null;
         connectingTask = new ConnectingTask(device, mKeyStoreManager, activity);
         connectingTask.setConnectionListener(this);
+        if (device.equals(lastDevice)) {
+            reconnectCount++;
+            if (lastSender != null) {
+                // Replay what was sent while the connection was down.
+                connectingTask.getAnymoteSender().inheritReplayBuffer(lastSender);
+            }
+        } else {
+            lastDevice = device;
+            lastSender = null;
+            reconnectCount = 0;
+        }
+        if (device.equals(prewarmedDevice)) {
+            connectingTask.setPrewarmedSocket(prewarmedSocket, prewarmedSince);
+            prewarmedSocket = null;
+            prewarmedDevice = null;
+        } else {
+            discardPrewarmedSocket();
+        }
+        handshakeStats.add(connectingTask.getHandshakeTimings());
+        connectingTask.setSessionRecorder(sessionRecorder);
+        final ConnectionMetrics metrics = connectingTask.getMetrics();
+        metrics.setReconnectCount(reconnectCount);
+        if (launchTime >= 0) {
+            metrics.setLaunchTime(launchTime);
+            launchTime = -1;
+        }
         connectingTask.start();
         return false;
     }
@@ -207,7 +580,7 @@ public class AnymoteClientService extends Service implements ConnectionListener
         TvDevice device = target;
 
         if (device != null) {
-            connect(device, context);
+            connect(device, this);
         }
     }
 
@@ -221,12 +594,55 @@ public class AnymoteClientService extends Service implements ConnectionListener
     }
 
     /**
-     * Adds client listeners.
+     * Health metrics of the current connection, or of the connection being
+     * established.
+     * 
+     * @return snapshot of the metrics, or {@code null} if there is no
+     *         connection.
+     */
+    public ConnectionMetrics.Snapshot getConnectionMetrics() {
+        final ConnectingTask task = connectingTask;
+        return task != null ? task.getConnectionMetrics() : null;
+    }
+
+    /**
+     * Sets the recorder of the messages exchanged with the TV. The recorder
+     * applies from the next call to {@link #connect(TvDevice, Context)}, which
+     * includes reconnections.
+     * 
+     * @param recorder the recorder, or {@code null} to stop recording.
+     */
+    public void setSessionRecorder(SessionRecorder recorder) {
+        sessionRecorder = recorder;
+    }
+
+    /**
+     * Timings of the phases of the connection attempts: histograms per phase
+     * and the timings of the latest attempts.
+     * 
+     * @return the timings.
+     */
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
+    /**
+     * Adds client listeners, called on the main thread.
      * 
      * @param listener client listener.
      */
     public void attachClientListener(ClientListener listener) {
-        clientListeners.add(listener);
+        attachClientListener(listener, HandlerExecutor.mainThread());
+    }
+
+    /**
+     * Adds client listeners.
+     * 
+     * @param listener client listener.
+     * @param executor executor the listener is called on.
+     */
+    public void attachClientListener(ClientListener listener, Executor executor) {
+        clientListeners.add(listener, executor);
     }
 
     /**
@@ -239,12 +655,22 @@ public class AnymoteClientService extends Service implements ConnectionListener
     }
 
     /**
-     * Adds pairing listeners.
+     * Adds pairing listeners, called on the main thread.
      * 
      * @param listener pairing listener.
      */
     public void attachPairingListener(PairingListener listener) {
-        pairingListeners.add(listener);
+        attachPairingListener(listener, HandlerExecutor.mainThread());
+    }
+
+    /**
+     * Adds pairing listeners.
+     * 
+     * @param listener pairing listener.
+     * @param executor executor the listener is called on.
+     */
+    public void attachPairingListener(PairingListener listener, Executor executor) {
+        pairingListeners.add(listener, executor);
     }
 
     /**
@@ -256,6 +682,34 @@ public class AnymoteClientService extends Service implements ConnectionListener
         pairingListeners.remove(listener);
     }
 
+    /**
+     * Adds suspend listeners, called on the main thread.
+     * 
+     * @param listener suspend listener.
+     */
+    public void attachSuspendListener(SuspendListener listener) {
+        attachSuspendListener(listener, HandlerExecutor.mainThread());
+    }
+
+    /**
+     * Adds suspend listeners.
+     * 
+     * @param listener suspend listener.
+     * @param executor executor the listener is called on.
+     */
+    public void attachSuspendListener(SuspendListener listener, Executor executor) {
+        suspendListeners.add(listener, executor);
+    }
+
+    /**
+     * Removes suspend listeners.
+     * 
+     * @param listener suspend listener.
+     */
+    public void detachSuspendListener(SuspendListener listener) {
+        suspendListeners.remove(listener);
+    }
+
     /**
      * Called by anybody who wants to cancel pending connection.
      */
@@ -280,13 +734,46 @@ public class AnymoteClientService extends Service implements ConnectionListener
     /**
      * Called when connecting task successfully established connection.
      */
-    public void onConnected(TvDevice device, AnymoteSender anymoteSender) {
+    public void onConnected(final TvDevice device, final AnymoteSender sender) {
+        // Stored here, not to write to disk on the main thread.
+        SharedPreferences.Editor editor =
+                getSharedPreferences(PREFS_LAST_DEVICE, MODE_PRIVATE).edit();
+        device.storeTo(editor);
+        editor.commit();
+        HandlerExecutor.mainThread().execute(new Runnable() {
+            public void run() {
+                if (!destroyed) {
+                    handleConnected(device, sender);
+                }
+            }
+        });
+    }
+
+    private void handleConnected(TvDevice device, final AnymoteSender sender) {
+        if (!isCurrent(sender)) {
+            // Connection of a task cancelled since, which closes it.
+            return;
+        }
+        recovering = false;
         target = device;
-        this.anymoteSender = anymoteSender;
+        anymoteSender = sender;
+        lastSender = sender;
+        getTvDiscovery().getPresenceMonitor().add(device, true);
         // Broadcast new connection.
-        for (ClientListener listener : clientListeners) {
-            listener.onConnected(anymoteSender);
-        }
+        clientListeners.dispatch(new ListenerList.Event<ClientListener>() {
+            public void deliver(ClientListener listener) {
+                listener.onConnected(sender);
+            }
+        });
+    }
+
+    /**
+     * Returns {@code true} if the sender belongs to the current connecting
+     * task. Callbacks of a task cancelled since are still delivered, and must
+     * not change the state of its replacement.
+     */
+    private boolean isCurrent(AnymoteSender sender) {
+        return connectingTask != null && connectingTask.getAnymoteSender() == sender;
     }
 
     public static AnymoteSender getAnymoteSender() {
@@ -307,18 +794,37 @@ public class AnymoteClientService extends Service implements ConnectionListener
     }
 
     @Override
-    public void onSecretRequired(PinListener pinListener) {
-        for (PairingListener listener : pairingListeners) {
-            listener.onPairingCodeRequired(pinListener);
-        }
+    public void onSecretRequired(final PinListener pinListener) {
+        pairingListeners.dispatch(new ListenerList.Event<PairingListener>() {
+            public void deliver(PairingListener listener) {
+                listener.onPairingCodeRequired(pinListener);
+            }
+        });
     }
 
     @Override
-    public void onConnectionFailed() {
-        this.anymoteSender = null;
-        for (ClientListener listener : clientListeners) {
-            listener.onConnectionFailed();
+    public void onConnectionFailed(final AnymoteSender sender) {
+        HandlerExecutor.mainThread().execute(new Runnable() {
+            public void run() {
+                if (!destroyed) {
+                    handleConnectionFailed(sender);
+                }
+            }
+        });
+    }
+
+    private void handleConnectionFailed(AnymoteSender sender) {
+        if (!isCurrent(sender)) {
+            // Attempt of a task cancelled since.
+            return;
         }
+        recovering = false;
+        anymoteSender = null;
+        clientListeners.dispatch(new ListenerList.Event<ClientListener>() {
+            public void deliver(ClientListener listener) {
+                listener.onConnectionFailed();
+            }
+        });
     }
 
     @Override
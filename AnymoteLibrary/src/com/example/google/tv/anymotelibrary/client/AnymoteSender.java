@@ -16,7 +16,6 @@ package com.example.google.tv.anymotelibrary.client;
 
 import com.google.anymote.Key.Action;
 import com.google.anymote.Key.Code;
-import com.google.anymote.Messages.DataItem;
 import com.google.anymote.Messages.DataList;
 import com.google.anymote.Messages.FlingResult;
 import com.google.anymote.common.AnymoteFactory;
@@ -27,27 +26,107 @@ import com.google.anymote.device.MessageReceiver;
 
 import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.connection.AckManager;
 import com.example.google.tv.anymotelibrary.connection.AckManager.Listener;
 import com.example.google.tv.anymotelibrary.connection.ConnectingTask;
+import com.example.google.tv.anymotelibrary.connection.ConnectionMetrics;
+import com.example.google.tv.anymotelibrary.connection.ConnectionMetrics.MessageType;
+import com.example.google.tv.anymotelibrary.connection.HandshakeTimings.Phase;
+import com.example.google.tv.anymotelibrary.connection.SessionRecorder;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
+import com.example.google.tv.anymotelibrary.util.HandlerExecutor;
 import com.example.google.tv.anymotelibrary.util.KeyEventTranslator;
+import com.example.google.tv.anymotelibrary.util.KeyMacro;
+import com.example.google.tv.anymotelibrary.util.ListenerList;
+import com.example.google.tv.anymotelibrary.util.ResultFuture;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLSocket;
 
 /**
  * A proxy class that sends messages to the Anymote server using Anymote
  * protocol.
+ * <p>
+ * Messages wait in a bounded queue until the sender thread writes them to the
+ * socket. Each sender has a thread of its own, since a write blocks while the
+ * socket is stalled, and the keep-alive that detects the stall runs on the
+ * shared event loop. When the socket stalls and the queue fills up, pointer moves and
+ * scrolls are merged into the last queued one or dropped, and discrete events
+ * such as keys are handled according to the {@link OverflowPolicy}.
+ * <p>
+ * Messages sent by the TV are delivered to the data, data list and fling
+ * result listeners, on their executors rather than on the socket reader
+ * thread.
+ * <p>
+ * Keys, clicks, data and flings sent while the connection is down are kept
+ * for a few seconds and replayed once connected again and the TV acknowledged
+ * a first ping, see {@link #setReplayTimeout(long)}.
  */
 public final class AnymoteSender implements MessageReceiver {
 
     private static final String LOG_TAG = AnymoteSender.class.getSimpleName();
 
+    /** The flag which controls whether debug output should be generated. */
+    private static final boolean DEBUG = false;
+
+    /**
+     * Listener for data messages sent by the TV.
+     */
+    public interface DataListener {
+        /**
+         * Called when the TV sends a data message.
+         * 
+         * @param type the type of the data.
+         * @param data the data.
+         */
+        void onData(String type, String data);
+    }
+
+    /**
+     * Listener for data list messages sent by the TV.
+     */
+    public interface DataListListener {
+        /**
+         * Called when the TV sends a data list message.
+         * 
+         * @param dataList the data list. Protocol buffer messages are
+         *            immutable, so this is the received message itself.
+         */
+        void onDataList(DataList dataList);
+    }
+
+    /**
+     * Listener for the results of flings.
+     */
+    public interface FlingResultListener {
+        /**
+         * Called when the TV reports the result of a fling.
+         * 
+         * @param flingResult the result.
+         * @param sequenceNumber the sequence number of the fling.
+         */
+        void onFlingResult(FlingResult flingResult, Integer sequenceNumber);
+    }
+
     /** Data type used to send a string in a data message. */
     private static final String DATA_TYPE_STRING = "com.google.tv.string";
 
@@ -61,7 +140,7 @@ public final class AnymoteSender implements MessageReceiver {
     private final ErrorListener errorListener;
 
     /** Sender for Anymote protocol */
-    private DeviceAdapter deviceAdapter;
+    private volatile DeviceAdapter deviceAdapter;
 
     /** ACK manager (ping etc) */
     private AckManager ackManager;
@@ -69,7 +148,95 @@ public final class AnymoteSender implements MessageReceiver {
     /** Remote device protocol version number */
     private int deviceVersion;
 
-    private MessageSenderThread mMessageSenderThread;
+    /** Records the messages of the connection, if set */
+    private volatile SessionRecorder sessionRecorder;
+
+    /** Health metrics of the connection */
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+
+    /** Listeners for inbound messages, by message type */
+    private final ListenerList<DataListener> dataListeners =
+            new ListenerList<DataListener>();
+    private final ListenerList<DataListListener> dataListListeners =
+            new ListenerList<DataListListener>();
+    private final ListenerList<FlingResultListener> flingResultListeners =
+            new ListenerList<FlingResultListener>();
+
+    /** Executor of listeners added without one */
+    private volatile Executor listenerExecutor = HandlerExecutor.mainThread();
+
+    /** Default time to wait for the result of a fling once it is written */
+    private static final long DEFAULT_FLING_TIMEOUT_MS = 10 * 1000;
+
+    /** Sequence number of the last fling */
+    private final AtomicInteger flingSequence = new AtomicInteger();
+
+    /** Flings waiting for their result, by sequence number */
+    private final ConcurrentMap<Integer, PendingFling> pendingFlings =
+            new ConcurrentHashMap<Integer, PendingFling>();
+
+    private volatile long flingTimeoutMs = DEFAULT_FLING_TIMEOUT_MS;
+
+    /** Round trip times of the flings, from write to result */
+    private final AtomicInteger flingRoundTripCount = new AtomicInteger();
+    private final AtomicLong flingRoundTripTotalNanos = new AtomicLong();
+    private volatile long lastFlingRoundTripNanos;
+
+    /** Default time discrete messages are kept while the connection is down */
+    private static final long DEFAULT_REPLAY_TIMEOUT_MS = 5 * 1000;
+
+    /** Discrete messages to replay once connected, shared across reconnects */
+    private volatile ReplayBuffer replayBuffer = new ReplayBuffer();
+
+    private volatile long replayTimeoutMs = DEFAULT_REPLAY_TIMEOUT_MS;
+
+    /** Whether messages are kept for replay although the socket is open */
+    private volatile boolean suspended;
+
+    /**
+     * Whether the connection is waiting for its first acknowledgment, before
+     * which the kept messages are not replayed.
+     */
+    private final AtomicBoolean awaitingFirstAck = new AtomicBoolean();
+
+    /** Default maximum number of messages waiting to be sent */
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /** Default time a discrete event waits for room with {@link OverflowPolicy#BLOCK} */
+    private static final long DEFAULT_BLOCK_TIMEOUT_MS = 250;
+
+    /**
+     * What to do with a discrete event, such as a key, when the send queue is
+     * full. Events are sent from the UI thread, which must not wait on a slow
+     * link, so the default is {@link #FAIL_FAST}.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for room in the queue, up to the block timeout. Only for senders
+         * that never send from the UI thread.
+         */
+        BLOCK,
+        /** Reject the event immediately. */
+        FAIL_FAST
+    }
+
+    /** Writes the queued messages, on the sender thread */
+    private final HandlerThread senderThread;
+    private final Handler senderHandler;
+
+    /** Times the fling results out, on the event loop */
+    private final Handler timeoutHandler;
+
+    /** Room in the send queue */
+    private final QueueAdmission admission =
+            new QueueAdmission(DEFAULT_QUEUE_CAPACITY, DEFAULT_BLOCK_TIMEOUT_MS);
+
+    /**
+     * Last message queued and not handled yet, that a pointer move or scroll
+     * can be merged into. Guarded by {@link #tailLock}.
+     */
+    private Message tail;
+    private final Object tailLock = new Object();
 
     private static final int KEY = 1;
     private static final int KEYPRESS = 2;
@@ -80,14 +247,84 @@ public final class AnymoteSender implements MessageReceiver {
     private static final int MOUSEMOVE = 7;
     private static final int CONNECT = 8;
     private static final int PING = 9;
-    
-    private class AnymoteKeyEvent {
-        Code code;
-        Action action;
- 
-        AnymoteKeyEvent(Code code, Action action) {
-            this.code = code;
-            this.action = action;
+    private static final int MACRO = 10;
+
+    /**
+     * Payload of a queued message, with the time it was due to be sent.
+     * {@link Message#getWhen()} is only in milliseconds and not the time the
+     * message was queued.
+     */
+    private static final class Queued {
+        final Object payload;
+
+        /** Time of queueing plus the intended delay, in System.nanoTime() */
+        final long dueNanos;
+
+        Queued(Object payload, long dueNanos) {
+            this.payload = payload;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    /**
+     * A macro being sent. Completes once all its events have been written.
+     */
+    private static final class MacroRun {
+        final KeyMacro macro;
+        final ResultFuture<Void> future = new ResultFuture<Void>();
+        int eventsSent;
+
+        MacroRun(KeyMacro macro) {
+            this.macro = macro;
+        }
+
+        void sendSegment(DeviceAdapter adapter, int segment) {
+            for (int i = macro.getSegmentStart(segment); i < macro.getSegmentEnd(segment); i++) {
+                adapter.sendKeyEvent(macro.getCode(i), macro.getAction(i));
+                eventsSent++;
+            }
+            if (eventsSent == macro.getEventCount()) {
+                future.set(null);
+            }
+        }
+
+        void fail() {
+            future.setException(new IOException("Connection lost after " + eventsSent + " of "
+                    + macro.getEventCount() + " macro events"));
+        }
+    }
+
+    /**
+     * A fling waiting for its result. Runs when the result times out, and is
+     * forgotten if its future is cancelled.
+     */
+    private final class PendingFling implements Runnable {
+        final int sequenceNumber;
+        final ResultFuture<FlingResult> future;
+        volatile long writeNanos;
+
+        PendingFling(int sequenceNumber, ResultFuture<FlingResult> future) {
+            this.sequenceNumber = sequenceNumber;
+            this.future = future;
+        }
+
+        /**
+         * Adds the fling to the pending ones, until its future is cancelled.
+         */
+        void register() {
+            pendingFlings.put(sequenceNumber, this);
+            future.setCancelListener(new Runnable() {
+                public void run() {
+                    if (pendingFlings.remove(sequenceNumber, PendingFling.this)) {
+                        timeoutHandler.removeCallbacks(PendingFling.this);
+                    }
+                }
+            });
+        }
+
+        public void run() {
+            failFling(sequenceNumber, new TimeoutException("No result for fling "
+                    + sequenceNumber + " after " + flingTimeoutMs + " ms"));
         }
     }
 
@@ -101,17 +338,25 @@ public final class AnymoteSender implements MessageReceiver {
         errorListener = new ErrorListener() {
             public void onIoError(String message, Throwable exception) {
                 Log.d(LOG_TAG, "IoError: " + message, exception);
-                onConnectionError();
+                postConnectionError();
             }
         };
         ackManager = new AckManager(new Listener() {
             public void onTimeout() {
                 ackManager.stop();
-                onConnectionError();
+                postConnectionError();
+            }
+
+            public void onRevalidated() {
+                suspended = false;
+                replayBuffer.attach(AnymoteSender.this);
+                connectingTask.onConnectionResumed();
             }
         }, this);
-        mMessageSenderThread = new MessageSenderThread();
-        mMessageSenderThread.start();
+        senderThread = new HandlerThread("AnymoteSender", Process.THREAD_PRIORITY_FOREGROUND);
+        senderThread.start();
+        senderHandler = new SenderHandler(senderThread.getLooper());
+        timeoutHandler = new Handler(EventLoop.getLooper());
     }
 
     /**
@@ -131,8 +376,15 @@ public final class AnymoteSender implements MessageReceiver {
         disconnect();
 
         try {
-            deviceAdapter = AnymoteFactory.getDeviceAdapter(
-                    this, sslSocket.getInputStream(), sslSocket.getOutputStream(), errorListener);
+            InputStream in = sslSocket.getInputStream();
+            OutputStream out = sslSocket.getOutputStream();
+            final SessionRecorder recorder = sessionRecorder;
+            if (recorder != null) {
+                in = recorder.tapInput(in);
+                out = recorder.tapOutput(out);
+            }
+            out = metrics.countOutput(out);
+            deviceAdapter = AnymoteFactory.getDeviceAdapter(this, in, out, errorListener);
         } catch (IOException e) {
             Log.d(LOG_TAG, "Unable to create sender", e);
             deviceAdapter = null;
@@ -140,24 +392,188 @@ public final class AnymoteSender implements MessageReceiver {
         }
 
         sendConnect();
+        // Kept messages are replayed once the TV acknowledges the first ping,
+        // rather than written into a connection that may not work.
+        awaitingFirstAck.set(true);
         ackManager.start();
         return true;
     }
 
+    /**
+     * Sets the recorder of the messages exchanged with the TV. The recorder
+     * applies to connections established afterwards, so it is set through
+     * {@link AnymoteClientService#setSessionRecorder(SessionRecorder)} before
+     * the sender connects.
+     * 
+     * @param recorder the recorder, or {@code null} to stop recording.
+     */
+    public void setSessionRecorder(SessionRecorder recorder) {
+        sessionRecorder = recorder;
+    }
+
+    /**
+     * Sets the executor of the inbound message listeners added afterwards
+     * without an executor. Defaults to the main thread.
+     * 
+     * @param executor the executor.
+     */
+    public void setListenerExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("null executor");
+        }
+        listenerExecutor = executor;
+    }
+
+    /**
+     * Adds a listener for data messages, called on the listener executor.
+     * 
+     * @param listener the listener.
+     */
+    public void addDataListener(DataListener listener) {
+        dataListeners.add(listener, listenerExecutor);
+    }
+
+    /**
+     * Adds a listener for data messages.
+     * 
+     * @param listener the listener.
+     * @param executor executor the listener is called on.
+     */
+    public void addDataListener(DataListener listener, Executor executor) {
+        dataListeners.add(listener, executor);
+    }
+
+    /**
+     * Removes a listener for data messages.
+     * 
+     * @param listener the listener.
+     */
+    public void removeDataListener(DataListener listener) {
+        dataListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener for data list messages, called on the listener
+     * executor.
+     * 
+     * @param listener the listener.
+     */
+    public void addDataListListener(DataListListener listener) {
+        dataListListeners.add(listener, listenerExecutor);
+    }
+
+    /**
+     * Adds a listener for data list messages.
+     * 
+     * @param listener the listener.
+     * @param executor executor the listener is called on.
+     */
+    public void addDataListListener(DataListListener listener, Executor executor) {
+        dataListListeners.add(listener, executor);
+    }
+
+    /**
+     * Removes a listener for data list messages.
+     * 
+     * @param listener the listener.
+     */
+    public void removeDataListListener(DataListListener listener) {
+        dataListListeners.remove(listener);
+    }
+
+    /**
+     * Adds a listener for fling results, called on the listener executor.
+     * 
+     * @param listener the listener.
+     */
+    public void addFlingResultListener(FlingResultListener listener) {
+        flingResultListeners.add(listener, listenerExecutor);
+    }
+
+    /**
+     * Adds a listener for fling results.
+     * 
+     * @param listener the listener.
+     * @param executor executor the listener is called on.
+     */
+    public void addFlingResultListener(FlingResultListener listener, Executor executor) {
+        flingResultListeners.add(listener, executor);
+    }
+
+    /**
+     * Removes a listener for fling results.
+     * 
+     * @param listener the listener.
+     */
+    public void removeFlingResultListener(FlingResultListener listener) {
+        flingResultListeners.remove(listener);
+    }
+
     /**
      * Disconnects from Anymote service.
      * 
      * @return boolean indicating if the device was successfully disconnected.
      */
-    public synchronized boolean disconnect() {
+    public boolean disconnect() {
+        DeviceAdapter adapter;
+        synchronized (this) {
+            ackManager.stop();
+            replayBuffer.detach(this);
+            // Flings not written yet are replayed after reconnecting.
+            for (PendingFling fling : pendingFlings.values()) {
+                if (fling.writeNanos != 0) {
+                    failFling(fling.sequenceNumber, new IOException("Connection lost"));
+                }
+            }
+            awaitingFirstAck.set(false);
+            adapter = deviceAdapter;
+            deviceAdapter = null;
+        }
+        if (adapter == null) {
+            return false;
+        }
+        // Stopping joins the reader thread: not while holding the lock.
+        adapter.stop();
+        return true;
+    }
 
+    /**
+     * Suspends the connection, for instance because the network is down.
+     * Messages are kept for replay instead of being written, and the
+     * keep-alive stops so that the connection is not reported lost.
+     */
+    public void suspend() {
+        suspended = true;
+        replayBuffer.detach(this);
         ackManager.stop();
-        if (deviceAdapter != null) {
-            deviceAdapter.stop();
-            deviceAdapter = null;
-            return true;
+    }
+
+    /**
+     * Resumes a suspended connection. The socket is first checked with a
+     * ping: once it is acknowledged, the kept messages are replayed,
+     * otherwise the connection is reported lost.
+     * 
+     * @param timeoutMs time to wait for the acknowledgment.
+     */
+    public void resume(long timeoutMs) {
+        if (suspended) {
+            ackManager.revalidate(timeoutMs);
         }
-        return false;
+    }
+
+    /**
+     * Returns {@code true} if the connection is suspended.
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Returns {@code true} if messages are written to the TV right away, that
+     * is if the connection is up and not suspended.
+     */
+    public boolean isConnected() {
+        return deviceAdapter != null && !suspended;
     }
 
     /**
@@ -166,59 +582,237 @@ public final class AnymoteSender implements MessageReceiver {
     public void destroy() {
         disconnect();
         ackManager.quit();
+        timeoutHandler.removeCallbacksAndMessages(null);
+        senderThread.quit();
+    }
+
+    /**
+     * Tears the connection down after an I/O error or a keep-alive timeout.
+     * Tearing down blocks joining the reader thread, so it runs on a worker
+     * rather than on the thread that noticed the error.
+     */
+    private void postConnectionError() {
+        EventLoop.getWorkers().execute(new Runnable() {
+            public void run() {
+                if (disconnect()) {
+                    connectingTask.onConnectionDisconnected();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of messages waiting to be sent.
+     * 
+     * @param capacity the capacity, at least 1.
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity < 1: " + capacity);
+        }
+        admission.setCapacity(capacity);
+    }
+
+    /**
+     * Sets what happens to discrete events, such as keys, when the send queue
+     * is full.
+     * 
+     * @param policy the overflow policy.
+     * @param timeoutMs maximum time to wait for room with
+     *            {@link OverflowPolicy#BLOCK}.
+     */
+    public void setOverflowPolicy(OverflowPolicy policy, long timeoutMs) {
+        admission.setBlocking(policy == OverflowPolicy.BLOCK, timeoutMs);
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     */
+    public int getQueueDepth() {
+        return admission.getDepth();
+    }
+
+    /**
+     * Returns the number of messages dropped or rejected so far because the
+     * send queue was full.
+     */
+    public int getOverflowCount() {
+        return admission.getOverflowCount();
+    }
+
+    /**
+     * Returns the health metrics of the connection.
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Queues a message to be sent at the given time.
+     * 
+     * @return {@code true} if the message was queued.
+     */
+    private boolean enqueue(Message msg, long uptimeMillis, int kind) {
+        if (!admission.admit(kind)) {
+            msg.recycle();
+            return false;
+        }
+        final long delayMillis = Math.max(0, uptimeMillis - SystemClock.uptimeMillis());
+        msg.obj = new Queued(msg.obj, System.nanoTime() + delayMillis * 1000000);
+        synchronized (tailLock) {
+            if (!senderHandler.sendMessageAtTime(msg, uptimeMillis)) {
+                // The sender thread quit: the message is never handled.
+                admission.release();
+                return false;
+            }
+            tail = msg;
+        }
+        return true;
     }
 
-    private void onConnectionError() {
-        if (disconnect()) {
-            connectingTask.onConnectionDisconnected();
+    private boolean enqueue(Message msg, int kind) {
+        return enqueue(msg, SystemClock.uptimeMillis(), kind);
+    }
+
+    /**
+     * Queues a relative pointer move or scroll. The deltas are added to the
+     * last queued message if it is of the same kind and still waiting.
+     */
+    private boolean enqueueMotion(int what, int deltaX, int deltaY) {
+        synchronized (tailLock) {
+            if (tail != null && tail.what == what) {
+                tail.arg1 += deltaX;
+                tail.arg2 += deltaY;
+                return true;
+            }
         }
+        final Message msg = Message.obtain();
+        msg.arg1 = deltaX;
+        msg.arg2 = deltaY;
+        msg.what = what;
+        return enqueue(msg, QueueAdmission.CONTINUOUS);
     }
 
     /**
      * Sends click event to Anymote service.
      * 
      * @param action
+     * @return {@code false} if the send queue was full.
      */
-    public void sendClick(final Action action) {
+    public boolean sendClick(final Action action) {
         final Message msg = Message.obtain();
         msg.obj = action;
         msg.what = CLICK;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        return enqueue(msg, QueueAdmission.DISCRETE);
     }
 
     /**
      * Sends Url to Anymote service. This is url is a serialzed representation
      * of Intent.
+     * <p>
+     * Each fling gets its own sequence number, so several flings can be in
+     * flight at once.
      * 
      * @param url
+     * @return future of the result reported by the TV. It fails if the send
+     *         queue was full, if the connection is lost, or if there is no
+     *         result within the fling timeout after the fling was written.
      */
-    public void sendUrl(final String url) {
+    public Future<FlingResult> sendUrl(final String url) {
+        final int sequenceNumber = nextFlingSequence();
+        final PendingFling fling =
+                new PendingFling(sequenceNumber, new ResultFuture<FlingResult>());
+        fling.register();
+
         final Message msg = Message.obtain();
         msg.obj = url;
+        msg.arg1 = sequenceNumber;
         msg.what = URL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        if (!enqueue(msg, QueueAdmission.DISCRETE)) {
+            failFling(sequenceNumber, new RejectedExecutionException("Send queue full"));
+        }
+        return fling.future;
     }
 
     /**
-     * Sends a sequence of keystrokes in String format to Anymote service.
-     * Example input: "AHDFSDF".
+     * Returns a new fling sequence number. Zero is skipped, since the TV
+     * does not return it.
+     */
+    private int nextFlingSequence() {
+        int sequenceNumber;
+        do {
+            sequenceNumber = flingSequence.incrementAndGet();
+        } while (sequenceNumber == 0);
+        return sequenceNumber;
+    }
+
+    /**
+     * Sets how long to wait for the result of a fling once it is written.
      * 
-     * @param url
+     * @param timeoutMs the timeout in milliseconds.
+     */
+    public void setFlingTimeout(long timeoutMs) {
+        flingTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Returns the number of fling results received.
+     */
+    public int getFlingRoundTripCount() {
+        return flingRoundTripCount.get();
+    }
+
+    /**
+     * Returns the time between writing the last fling and receiving its
+     * result, in milliseconds.
+     */
+    public long getLastFlingRoundTripMillis() {
+        return lastFlingRoundTripNanos / 1000000;
+    }
+
+    /**
+     * Returns the average time between writing a fling and receiving its
+     * result, in milliseconds.
      */
-    public void sendData(final String data) {
+    public long getAverageFlingRoundTripMillis() {
+        int count = flingRoundTripCount.get();
+        return count == 0 ? 0 : flingRoundTripTotalNanos.get() / count / 1000000;
+    }
+
+    /**
+     * Fails a pending fling.
+     */
+    private void failFling(int sequenceNumber, Exception cause) {
+        PendingFling fling = pendingFlings.remove(sequenceNumber);
+        if (fling != null) {
+            timeoutHandler.removeCallbacks(fling);
+            fling.future.setException(cause);
+        }
+    }
+
+    /**
+     * Sends a sequence of keystrokes in String format to Anymote service, as a
+     * single data message. Example input: "AHDFSDF".
+     * 
+     * @param data the text to be typed on the TV.
+     * @return {@code false} if the send queue was full.
+     */
+    public boolean sendData(final String data) {
         final Message msg = Message.obtain();
         msg.obj = data;
-        msg.what = URL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        msg.what = DATA;
+        return enqueue(msg, QueueAdmission.DISCRETE);
     }
 
     /**
      * Converts Intent to String and sends it to deviceAdapter.
      * 
      * @param intent The Intent to be sent to Anymote service.
+     * @return future of the result reported by the TV, see
+     *         {@link #sendUrl(String)}.
      */
-    public void sendIntent(Intent intent) {
-        sendUrl(intent.toUri(Intent.URI_INTENT_SCHEME));
+    public Future<FlingResult> sendIntent(Intent intent) {
+        return sendUrl(intent.toUri(Intent.URI_INTENT_SCHEME));
     }
 
     /**
@@ -226,9 +820,10 @@ public final class AnymoteSender implements MessageReceiver {
      * deviceAdapter.
      * 
      * @param keyEvent The key event to be sent to Anymote service.
+     * @return {@code false} if the send queue was full.
      */
-    public void sendKeyPress(int keyEvent) {
-        sendKeyPress(KeyEventTranslator.fromKeyEvent(keyEvent));
+    public boolean sendKeyPress(int keyEvent) {
+        return sendKeyPress(KeyEventTranslator.fromKeyEvent(keyEvent));
     }
 
     /**
@@ -236,24 +831,56 @@ public final class AnymoteSender implements MessageReceiver {
      * 
      * @param keycode The keycode of the key to be sent.
      * @param action The key up/down action.
+     * @return {@code false} if the send queue was full.
      */
-    public void sendKey(final Code keycode, final Action action) {
+    public boolean sendKey(final Code keycode, final Action action) {
         final Message msg = Message.obtain();
-        msg.obj = new AnymoteKeyEvent(keycode, action);
+        msg.obj = keycode;
+        msg.arg1 = action.getNumber();
         msg.what = KEY;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        return enqueue(msg, QueueAdmission.DISCRETE);
     }
 
     /**
      * Sends key press event to Anymote service.
      * 
      * @param key code of the key that was pressed.
+     * @return {@code false} if the send queue was full.
      */
-    public void sendKeyPress(final Code key) {
+    public boolean sendKeyPress(final Code key) {
         final Message msg = Message.obtain();
         msg.obj = key;
         msg.what = KEYPRESS;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        return enqueue(msg, QueueAdmission.DISCRETE);
+    }
+
+    /**
+     * Sends a macro to Anymote service. The events of a segment are written
+     * back to back. Each segment is queued once the previous one is written,
+     * after the gap between their offsets, so the gaps are kept even when the
+     * send queue is backed up. Macros are queued even if the send queue is
+     * full.
+     * 
+     * @param macro the macro to be sent.
+     * @return future that completes once all the events of the macro have
+     *         been written, or fails if the connection was lost.
+     */
+    public Future<Void> sendMacro(final KeyMacro macro) {
+        final MacroRun run = new MacroRun(macro);
+        if (macro.getSegmentCount() == 0) {
+            run.future.set(null);
+        } else {
+            enqueueSegment(run, 0, SystemClock.uptimeMillis() + macro.getSegmentOffset(0));
+        }
+        return run.future;
+    }
+
+    private void enqueueSegment(MacroRun run, int segment, long uptimeMillis) {
+        final Message msg = Message.obtain();
+        msg.obj = run;
+        msg.arg1 = segment;
+        msg.what = MACRO;
+        enqueue(msg, uptimeMillis, QueueAdmission.ALWAYS);
     }
 
     /**
@@ -263,13 +890,11 @@ public final class AnymoteSender implements MessageReceiver {
      *            mouse movement.
      * @param deltaY the delta between intial and final y positions of the the
      *            mouse movement.
+     * @return {@code false} if the send queue was full and the move was
+     *         dropped.
      */
-    public void sendMoveRelative(final int deltaX, final int deltaY) {
-        final Message msg = Message.obtain();
-        msg.arg1 = deltaX;
-        msg.arg2 = deltaY;
-        msg.what = MOUSEMOVE;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+    public boolean sendMoveRelative(final int deltaX, final int deltaY) {
+        return enqueueMotion(MOUSEMOVE, deltaX, deltaY);
     }
 
     /**
@@ -279,96 +904,266 @@ public final class AnymoteSender implements MessageReceiver {
      *            scroll movement.
      * @param deltaY the delta between intial and final y positions of the the
      *            scroll movement.
+     * @return {@code false} if the send queue was full and the scroll was
+     *         dropped.
      */
-    public void sendScroll(final int deltaX, final int deltaY) {
-        final Message msg = Message.obtain();
-        msg.arg1 = deltaX;
-        msg.arg2 = deltaY;
-        msg.what = SCROLL;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+    public boolean sendScroll(final int deltaX, final int deltaY) {
+        return enqueueMotion(SCROLL, deltaX, deltaY);
     }
 
     /**
-     * Sends ping to Anymote service to monitor connection state.
+     * Sends ping to Anymote service to monitor connection state. A ping
+     * that does not fit in the send queue is dropped, and counts as lost.
+     * 
+     * @return {@code false} if the send queue was full.
      */
-    public void sendPing() {
+    public boolean sendPing() {
         final Message msg = Message.obtain();
         msg.what = PING;
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        return enqueue(msg, QueueAdmission.CONTINUOUS);
     }
 
     private void sendConnect() {
         final Message msg = Message.obtain();
         msg.what = CONNECT;
         msg.obj = new ConnectInfo(DEVICE_NAME, connectingTask.getVersionCode());
-        mMessageSenderThread.mHandler.sendMessage(msg);
+        enqueue(msg, QueueAdmission.ALWAYS);
     }
 
-    private class MessageSenderThread extends Thread {
-        public Handler mHandler;
+    /**
+     * Writes queued messages to the socket, on the sender thread.
+     */
+    private final class SenderHandler extends Handler {
+        SenderHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final Queued queued = (Queued) msg.obj;
+            final int arg1;
+            final int arg2;
+            synchronized (tailLock) {
+                if (tail == msg) {
+                    tail = null;
+                }
+                arg1 = msg.arg1;
+                arg2 = msg.arg2;
+            }
+            try {
+                final DeviceAdapter adapter = deviceAdapter;
+                if (adapter != null && (isWritable() || msg.what == PING
+                        || msg.what == CONNECT)) {
+                    send(adapter, msg.what, queued, arg1, arg2);
+                } else {
+                    buffer(msg, queued.payload, arg1, arg2);
+                }
+            } finally {
+                admission.release();
+            }
+        }
 
-        public void run() {
-            Looper.prepare();
-
-            mHandler = new Handler() {
-                public void handleMessage(Message msg) {
-                    if (deviceAdapter == null)
-                        return;
-                    switch (msg.what) {
-                        case KEYPRESS:
-                            deviceAdapter.sendKeyEvent((Code) msg.obj, Action.DOWN);
-                            deviceAdapter.sendKeyEvent((Code) msg.obj, Action.UP);
-                            break;
-                        case MOUSEMOVE:
-                            deviceAdapter.sendMouseMove(msg.arg1, msg.arg2);
-                            break;
-                        case CLICK:
-                            deviceAdapter.sendKeyEvent(Code.BTN_MOUSE, (Action) msg.obj);
-                            break;
-                        case URL:
-                            deviceAdapter.sendFling((String)msg.obj, 0);
-                            break;
-                        case DATA:
-                            deviceAdapter.sendData(DATA_TYPE_STRING, (String)msg.obj);
-                            break;
-                        case KEY:
-                            final AnymoteKeyEvent keyEvent = (AnymoteKeyEvent)msg.obj;
-                            deviceAdapter.sendKeyEvent(keyEvent.code, keyEvent.action);
-                            break;
-                        case SCROLL:
-                            deviceAdapter.sendMouseWheel(msg.arg1, msg.arg2);
-                            break;
-                        case PING:
-                            deviceAdapter.sendPing();
-                            break;
-                        case CONNECT:
-                            deviceAdapter.sendConnect((ConnectInfo)msg.obj);
+        /**
+         * Returns {@code true} if messages are written, and not kept so that
+         * they do not overtake the kept messages still to be replayed.
+         */
+        private boolean isWritable() {
+            return !suspended && !(awaitingFirstAck.get() && !replayBuffer.isEmpty());
+        }
+
+        private void send(DeviceAdapter adapter, int what, Queued queued, int arg1, int arg2) {
+            final Object payload = queued.payload;
+            final long due = queued.dueNanos;
+            switch (what) {
+                case KEYPRESS:
+                    metrics.onWrite(MessageType.KEY, 2, due);
+                    adapter.sendKeyEvent((Code) payload, Action.DOWN);
+                    adapter.sendKeyEvent((Code) payload, Action.UP);
+                    break;
+                case MOUSEMOVE:
+                    metrics.onWrite(MessageType.MOUSE_MOVE, 1, due);
+                    adapter.sendMouseMove(arg1, arg2);
+                    break;
+                case CLICK:
+                    metrics.onWrite(MessageType.KEY, 1, due);
+                    adapter.sendKeyEvent(Code.BTN_MOUSE, (Action) payload);
+                    break;
+                case URL:
+                    metrics.onWrite(MessageType.FLING, 1, due);
+                    final PendingFling fling = pendingFlings.get(arg1);
+                    if (fling != null) {
+                        fling.writeNanos = System.nanoTime();
+                        timeoutHandler.postDelayed(fling, flingTimeoutMs);
+                    }
+                    adapter.sendFling((String) payload, arg1);
+                    break;
+                case DATA:
+                    metrics.onWrite(MessageType.DATA, 1, due);
+                    adapter.sendData(DATA_TYPE_STRING, (String) payload);
+                    break;
+                case KEY:
+                    metrics.onWrite(MessageType.KEY, 1, due);
+                    adapter.sendKeyEvent((Code) payload, Action.valueOf(arg1));
+                    break;
+                case SCROLL:
+                    metrics.onWrite(MessageType.MOUSE_WHEEL, 1, due);
+                    adapter.sendMouseWheel(arg1, arg2);
+                    break;
+                case PING:
+                    metrics.onWrite(MessageType.PING, 1, due);
+                    adapter.sendPing();
+                    break;
+                case CONNECT:
+                    metrics.onWrite(MessageType.CONNECT, 1, due);
+                    adapter.sendConnect((ConnectInfo) payload);
+                    connectingTask.getHandshakeTimings().recordOnce(Phase.CONNECT_INFO);
+                    break;
+                case MACRO:
+                    final MacroRun run = (MacroRun) payload;
+                    metrics.onWrite(MessageType.KEY, run.macro.getSegmentEnd(arg1)
+                            - run.macro.getSegmentStart(arg1), due);
+                    run.sendSegment(adapter, arg1);
+                    if (arg1 + 1 < run.macro.getSegmentCount()) {
+                        enqueueSegment(run, arg1 + 1, SystemClock.uptimeMillis()
+                                + run.macro.getSegmentOffset(arg1 + 1)
+                                - run.macro.getSegmentOffset(arg1));
                     }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Keeps a discrete message sent while the connection is down, to replay
+     * it once connected again. Continuous messages are dropped.
+     */
+    private void buffer(Message msg, Object payload, int arg1, int arg2) {
+        final long timeout = replayTimeoutMs;
+        ResultFuture<FlingResult> flingFuture = null;
+        switch (msg.what) {
+            case URL:
+                final PendingFling fling = pendingFlings.remove(arg1);
+                if (fling == null) {
+                    return;
+                }
+                if (timeout <= 0) {
+                    fling.future.setException(new IOException("Not connected"));
+                    return;
                 }
-            };
+                flingFuture = fling.future;
+                break;
+            case KEY:
+            case KEYPRESS:
+            case CLICK:
+            case DATA:
+                if (timeout <= 0) {
+                    return;
+                }
+                break;
+            case MACRO:
+                // The rest of the macro is not sent.
+                ((MacroRun) payload).fail();
+                return;
+            default:
+                return;
+        }
+        replayBuffer.add(new ReplayBuffer.Entry(
+                msg.what, payload, arg1, arg2, msg.getWhen() + timeout, flingFuture));
+    }
 
-            Looper.loop();
+    /**
+     * Queues a message kept while the connection was down.
+     */
+    void replay(ReplayBuffer.Entry entry) {
+        final Message msg = Message.obtain();
+        msg.what = entry.what;
+        msg.obj = entry.obj;
+        msg.arg1 = entry.arg1;
+        msg.arg2 = entry.arg2;
+        if (entry.what == URL) {
+            if (entry.flingFuture.isCancelled()) {
+                msg.recycle();
+                return;
+            }
+            // Sequence numbers are per connection.
+            msg.arg1 = nextFlingSequence();
+            new PendingFling(msg.arg1, entry.flingFuture).register();
         }
+        enqueue(msg, QueueAdmission.ALWAYS);
+    }
+
+    /**
+     * Sets how long keys, clicks, data and flings sent while the connection
+     * is down are kept to be replayed once connected again.
+     * 
+     * @param timeoutMs the timeout in milliseconds, {@code 0} to drop them.
+     */
+    public void setReplayTimeout(long timeoutMs) {
+        replayTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Takes over the messages kept by the sender of a previous connection to
+     * the same device, and shares them with it until it is dropped, since the
+     * client may send to it until notified of the new connection.
+     * 
+     * @param previous the sender of the previous connection.
+     */
+    public void inheritReplayBuffer(AnymoteSender previous) {
+        replayBuffer = previous.replayBuffer;
+        replayTimeoutMs = previous.replayTimeoutMs;
+    }
+
+    /**
+     * Returns the number of messages replayed after reconnecting.
+     */
+    public int getReplayedCount() {
+        return replayBuffer.getReplayedCount();
+    }
+
+    /**
+     * Returns the number of messages dropped because the connection was not
+     * restored in time.
+     */
+    public int getExpiredCount() {
+        return replayBuffer.getExpiredCount();
     }
 
     public void onAck() {
+        metrics.onAck();
+        connectingTask.getHandshakeTimings().recordOnce(Phase.FIRST_ACK);
+        if (awaitingFirstAck.compareAndSet(true, false) && !suspended) {
+            replayBuffer.attach(this);
+        }
         ackManager.onAck();
     }
 
-    public void onData(String type, String data) {
-        Log.d(LOG_TAG, "onData: " + type + " / " + data);
+    public void onData(final String type, final String data) {
+        if (DEBUG) {
+            Log.d(LOG_TAG, "onData: " + type + " / " + data);
+        }
+        if (dataListeners.isEmpty()) {
+            return;
+        }
+        dataListeners.dispatch(new ListenerList.Event<DataListener>() {
+            public void deliver(DataListener listener) {
+                listener.onData(type, data);
+            }
+        });
     }
 
-    public void onDataList(DataList dataList) {
-        Log.d(LOG_TAG, "onDataList: " + dataList.getType());
-        for (DataItem dataItem : dataList.getItemList()) {
-            for (String string : dataItem.getStringFieldList()) {
-                Log.d(LOG_TAG, " data item [string]: " + string);
-            }
-            for (int i : dataItem.getIntFieldList()) {
-                Log.d(LOG_TAG, " data item [int]: " + i);
-            }
+    public void onDataList(final DataList dataList) {
+        if (DEBUG) {
+            Log.d(LOG_TAG, "onDataList: " + dataList.getType());
         }
+        if (dataListListeners.isEmpty()) {
+            return;
+        }
+        dataListListeners.dispatch(new ListenerList.Event<DataListListener>() {
+            public void deliver(DataListListener listener) {
+                listener.onDataList(dataList);
+            }
+        });
     }
 
     /**
@@ -384,7 +1179,27 @@ public final class AnymoteSender implements MessageReceiver {
         ackManager.start();
     }
 
-    public void onFlingResult(FlingResult flingResult, Integer sequenceNumber) {
-        Log.d(LOG_TAG, "onFlingResult: " + sequenceNumber);
+    public void onFlingResult(final FlingResult flingResult, final Integer sequenceNumber) {
+        if (DEBUG) {
+            Log.d(LOG_TAG, "onFlingResult: " + sequenceNumber);
+        }
+        final PendingFling fling =
+                sequenceNumber != null ? pendingFlings.remove(sequenceNumber) : null;
+        if (fling != null) {
+            timeoutHandler.removeCallbacks(fling);
+            long roundTripNanos = System.nanoTime() - fling.writeNanos;
+            lastFlingRoundTripNanos = roundTripNanos;
+            flingRoundTripTotalNanos.addAndGet(roundTripNanos);
+            flingRoundTripCount.incrementAndGet();
+            fling.future.set(flingResult);
+        }
+        if (flingResultListeners.isEmpty()) {
+            return;
+        }
+        flingResultListeners.dispatch(new ListenerList.Event<FlingResultListener>() {
+            public void deliver(FlingResultListener listener) {
+                listener.onFlingResult(flingResult, sequenceNumber);
+            }
+        });
     }
 }
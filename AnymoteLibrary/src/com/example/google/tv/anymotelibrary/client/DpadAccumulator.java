@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+/**
+ * Turns trackball motion into dpad steps. Motion is scaled by its speed and
+ * accumulated per axis, and one step is emitted per threshold of accumulated
+ * motion: a fast flick emits several steps at once, and a slow drift needs
+ * more motion for one. Motion that stops for a while is forgotten, and steps
+ * over the maximum rate are dropped so that a flick does not overshoot.
+ * <p>
+ * The speed of a motion is its distance over the time since the previous one.
+ * After a pause there is no previous motion to measure from, so the first
+ * motion is taken as one sample interval long.
+ */
+final class DpadAccumulator {
+
+    /**
+     * Speed, in thresholds per second, at which motion is taken as is.
+     */
+    private static final float REFERENCE_SPEED = 5f;
+
+    /**
+     * Bounds of the factor applied to motion depending on its speed.
+     */
+    private static final float MIN_GAIN = 0.5f;
+    private static final float MAX_GAIN = 4f;
+
+    /**
+     * Pause after which accumulated motion is forgotten.
+     */
+    private static final long IDLE_RESET_MS = 500;
+
+    /**
+     * Time taken for the first motion after a pause, about the interval at
+     * which a moving trackball reports.
+     */
+    private static final long NOMINAL_SAMPLE_MS = 16;
+
+    /**
+     * Maximum rate of steps, and the number that can be emitted at once.
+     */
+    private static final float MAX_STEPS_PER_SECOND = 15f;
+    private static final float MAX_STEP_BURST = 5f;
+
+    /**
+     * Amount of scaled motion that makes up one step.
+     */
+    private final float threshold;
+
+    /**
+     * Scaled motion accumulated along each axis.
+     */
+    private float accuX, accuY;
+
+    /**
+     * Time of the last motion.
+     */
+    private long lastMotionTime = Long.MIN_VALUE;
+
+    /**
+     * Steps that can be emitted before reaching the maximum rate.
+     */
+    private float availableSteps = MAX_STEP_BURST;
+
+    /**
+     * Steps emitted by the last motion along each axis.
+     */
+    private int stepsX, stepsY;
+
+    /**
+     * Constructor.
+     *
+     * @param threshold amount of motion that makes up one step at the
+     *            reference speed, greater than 0.
+     */
+    DpadAccumulator(float threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold <= 0: " + threshold);
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Forgets the accumulated motion, e.g. when the trackball is clicked.
+     */
+    void reset() {
+        accuX = 0;
+        accuY = 0;
+    }
+
+    /**
+     * Accumulates a motion. The steps it emits are then returned by
+     * {@link #getStepsX()} and {@link #getStepsY()}, horizontal ones first.
+     *
+     * @param dx motion along the horizontal axis.
+     * @param dy motion along the vertical axis.
+     * @param eventTime time of the motion, in milliseconds.
+     */
+    void update(float dx, float dy, long eventTime) {
+        stepsX = 0;
+        stepsY = 0;
+        long elapsed = eventTime - lastMotionTime;
+        lastMotionTime = eventTime;
+        if (elapsed < 0 || elapsed > IDLE_RESET_MS) {
+            reset();
+            availableSteps = MAX_STEP_BURST;
+            elapsed = NOMINAL_SAMPLE_MS;
+        } else {
+            availableSteps = Math.min(MAX_STEP_BURST,
+                    availableSteps + elapsed * MAX_STEPS_PER_SECOND / 1000);
+        }
+
+        float gain = getGain(dx, dy, elapsed);
+        accuX += dx * gain;
+        accuY += dy * gain;
+        if (Math.abs(accuX) > threshold) {
+            stepsX = takeSteps(accuX);
+            accuX = accuX % threshold;
+            accuY = 0;
+        }
+        if (Math.abs(accuY) > threshold) {
+            stepsY = takeSteps(accuY);
+            accuY = accuY % threshold;
+            accuX = 0;
+        }
+    }
+
+    /**
+     * Returns the horizontal steps emitted by the last motion, positive to the
+     * right.
+     */
+    int getStepsX() {
+        return stepsX;
+    }
+
+    /**
+     * Returns the vertical steps emitted by the last motion, positive
+     * downwards.
+     */
+    int getStepsY() {
+        return stepsY;
+    }
+
+    /**
+     * Returns the factor applied to a motion, from its speed.
+     *
+     * @param elapsed time taken by the motion, in milliseconds.
+     */
+    private float getGain(float dx, float dy, long elapsed) {
+        float distance = (float) Math.sqrt(dx * dx + dy * dy) / threshold;
+        float speed = distance * 1000 / Math.max(elapsed, 1);
+        return Math.max(MIN_GAIN, Math.min(MAX_GAIN, speed / REFERENCE_SPEED));
+    }
+
+    /**
+     * Takes one step per threshold of accumulated motion, within the maximum
+     * rate. The whole thresholds are consumed either way.
+     *
+     * @param accu accumulated motion along an axis.
+     * @return the signed number of steps.
+     */
+    private int takeSteps(float accu) {
+        int steps = (int) (Math.abs(accu) / threshold);
+        // Steps over the rate are dropped rather than delayed.
+        steps = Math.min(steps, (int) availableSteps);
+        availableSteps -= steps;
+        return accu > 0 ? steps : -steps;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Code;
+
+import android.os.Handler;
+
+import com.example.google.tv.anymotelibrary.util.Action;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
+
+/**
+ * Repeats a key while it is held, such as a directional key of an on-screen
+ * dpad. Each repeat is a full key press, so it does not depend on the TV
+ * repeating a key that is held down, which stalls when packets are late.
+ * <p>
+ * The first repeat comes after an initial delay, then the interval between
+ * repeats shrinks by the acceleration factor down to a minimum. Repeats run
+ * on the {@link EventLoop}. A repeat is skipped while earlier messages are
+ * still waiting to be sent, so that the TV does not keep moving after the key
+ * is released, and repeating stops if the connection is lost.
+ */
+public final class KeyRepeater {
+
+    private static final long DEFAULT_INITIAL_DELAY_MS = 400;
+    private static final long DEFAULT_REPEAT_INTERVAL_MS = 120;
+    private static final long DEFAULT_MIN_REPEAT_INTERVAL_MS = 40;
+    private static final float DEFAULT_ACCELERATION = 0.9f;
+
+    /**
+     * Number of messages waiting to be sent over which a repeat is skipped.
+     */
+    private static final int MAX_QUEUE_DEPTH = 1;
+
+    private final AnymoteSender anymoteSender;
+    private final Handler handler;
+
+    private long initialDelayMs = DEFAULT_INITIAL_DELAY_MS;
+    private long repeatIntervalMs = DEFAULT_REPEAT_INTERVAL_MS;
+    private long minRepeatIntervalMs = DEFAULT_MIN_REPEAT_INTERVAL_MS;
+    private float acceleration = DEFAULT_ACCELERATION;
+
+    /**
+     * Key being repeated, or {@code null}.
+     */
+    private Code code;
+
+    /**
+     * Interval before the next repeat.
+     */
+    private float intervalMs;
+
+    private int repeatCount;
+    private int skippedCount;
+
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            onTick();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param anymoteSender sends the key presses.
+     */
+    public KeyRepeater(AnymoteSender anymoteSender) {
+        this.anymoteSender = anymoteSender;
+        handler = new Handler(EventLoop.getLooper());
+    }
+
+    /**
+     * Sets the time between pressing a key and its first repeat.
+     *
+     * @param delayMs the delay.
+     */
+    public synchronized void setInitialDelay(long delayMs) {
+        initialDelayMs = delayMs;
+    }
+
+    /**
+     * Sets the interval between the first repeats.
+     *
+     * @param intervalMs the interval, at least 1.
+     */
+    public synchronized void setRepeatInterval(long intervalMs) {
+        if (intervalMs < 1) {
+            throw new IllegalArgumentException("Interval < 1: " + intervalMs);
+        }
+        repeatIntervalMs = intervalMs;
+    }
+
+    /**
+     * Sets how repeats speed up while the key is held.
+     *
+     * @param factor factor applied to the interval after each repeat, between
+     *            0 and 1. 1 repeats at a constant rate.
+     * @param minIntervalMs the interval under which repeats do not speed up.
+     */
+    public synchronized void setAcceleration(float factor, long minIntervalMs) {
+        if (factor <= 0 || factor > 1) {
+            throw new IllegalArgumentException("Acceleration not in (0, 1]: " + factor);
+        }
+        acceleration = factor;
+        minRepeatIntervalMs = Math.max(minIntervalMs, 1);
+    }
+
+    /**
+     * Presses a key: sends it once, and repeats it until {@link #release()}.
+     * Pressing a key releases the previous one.
+     *
+     * @param action the key, sent as a full key press whatever its key action.
+     */
+    public void press(Action action) {
+        press(action.getCode());
+    }
+
+    /**
+     * Presses a key: sends it once, and repeats it until {@link #release()}.
+     * Pressing a key releases the previous one.
+     *
+     * @param key the key.
+     */
+    public void press(Code key) {
+        synchronized (this) {
+            handler.removeCallbacks(tick);
+            code = key;
+            intervalMs = repeatIntervalMs;
+            repeatCount = 0;
+            skippedCount = 0;
+            handler.postDelayed(tick, initialDelayMs);
+        }
+        // The send may wait for room in the queue: not while holding the lock
+        // that repeats on the event loop need.
+        anymoteSender.sendKeyPress(key);
+    }
+
+    /**
+     * Releases the key, stopping the repeats.
+     */
+    public synchronized void release() {
+        handler.removeCallbacks(tick);
+        code = null;
+    }
+
+    /**
+     * Returns {@code true} if a key is being repeated.
+     */
+    public synchronized boolean isRepeating() {
+        return code != null;
+    }
+
+    /**
+     * Returns the number of repeats sent since the key was pressed.
+     */
+    public synchronized int getRepeatCount() {
+        return repeatCount;
+    }
+
+    /**
+     * Returns the number of repeats skipped since the key was pressed because
+     * the send queue was backed up.
+     */
+    public synchronized int getSkippedCount() {
+        return skippedCount;
+    }
+
+    private synchronized void onTick() {
+        if (code == null) {
+            return;
+        }
+        if (!anymoteSender.isConnected()) {
+            // Repeats queued for replay would arrive long after the release.
+            release();
+            return;
+        }
+        // With the queue drained, the send never waits for room, which would
+        // hold up the event loop.
+        if (anymoteSender.getQueueDepth() < MAX_QUEUE_DEPTH
+                && anymoteSender.sendKeyPress(code)) {
+            repeatCount++;
+        } else {
+            skippedCount++;
+        }
+        handler.postDelayed(tick, (long) intervalMs);
+        intervalMs = Math.max(minRepeatIntervalMs, intervalMs * acceleration);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Continues a scroll after the finger has been lifted. Recent touch samples
+ * are used to estimate the release velocity, which then decays over time and
+ * is sent to the TV as scroll deltas on a fixed-rate tick.
+ */
+final class KineticScroller {
+
+    /**
+     * Interval between two scroll events while flinging. Deltas produced
+     * between ticks are coalesced into a single scroll event.
+     */
+    private static final int TICK_MS = 50;
+
+    /**
+     * Only samples that are this recent are used to estimate velocity.
+     */
+    private static final int VELOCITY_WINDOW_MS = 100;
+
+    /**
+     * Number of samples kept by the velocity estimator.
+     */
+    private static final int MAX_SAMPLES = 8;
+
+    /**
+     * Minimum release velocity, in pixels per second, that starts a fling.
+     */
+    private static final float MIN_FLING_VELOCITY = 300.0f;
+
+    /**
+     * Velocity, in pixels per second, under which a fling stops.
+     */
+    private static final float STOP_VELOCITY = 40.0f;
+
+    /**
+     * Exponential decay rate of the fling velocity, per second.
+     */
+    private static final float DECAY_RATE = 3.0f;
+
+    /**
+     * Minimum absolute delta sent in a single scroll event.
+     */
+    private static final int MIN_SCROLL_DELTA = 2;
+
+    private final AnymoteSender anymoteSender;
+    private final Handler handler;
+    private final boolean horizontal;
+    private final boolean vertical;
+
+    /**
+     * Ring buffer of the most recent touch samples.
+     */
+    private final long[] sampleTimes = new long[MAX_SAMPLES];
+    private final float[] sampleX = new float[MAX_SAMPLES];
+    private final float[] sampleY = new float[MAX_SAMPLES];
+    private int sampleCount;
+    private int sampleHead;
+
+    /**
+     * Current fling state.
+     */
+    private float velocityX, velocityY;
+    private float remainderX, remainderY;
+    private long lastTickTime;
+    private boolean isFlinging;
+
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            onTick();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param anymoteSender sends the scroll events.
+     * @param horizontal {@code true} if horizontal motion should be scrolled.
+     * @param vertical {@code true} if vertical motion should be scrolled.
+     */
+    KineticScroller(AnymoteSender anymoteSender, boolean horizontal, boolean vertical) {
+        this.anymoteSender = anymoteSender;
+        this.horizontal = horizontal;
+        this.vertical = vertical;
+        handler = new Handler();
+    }
+
+    /**
+     * Records a touch sample for velocity estimation.
+     *
+     * @param x the touch's x coordinate
+     * @param y the touch's y coordinate
+     * @param timestamp the touch's time, in the {@link SystemClock#uptimeMillis()}
+     *            time base.
+     */
+    void addMovement(float x, float y, long timestamp) {
+        sampleHead = (sampleHead + 1) % MAX_SAMPLES;
+        sampleTimes[sampleHead] = timestamp;
+        sampleX[sampleHead] = x;
+        sampleY[sampleHead] = y;
+        if (sampleCount < MAX_SAMPLES) {
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Forgets all recorded samples.
+     */
+    void clear() {
+        sampleCount = 0;
+    }
+
+    /**
+     * Starts a fling with the velocity estimated from the recorded samples, if
+     * it is fast enough.
+     *
+     * @return {@code true} if a fling was started.
+     */
+    boolean fling() {
+        cancel();
+        if (!computeVelocity()) {
+            return false;
+        }
+        float speed = Math.max(Math.abs(velocityX), Math.abs(velocityY));
+        if (speed < MIN_FLING_VELOCITY) {
+            return false;
+        }
+        remainderX = 0;
+        remainderY = 0;
+        lastTickTime = SystemClock.uptimeMillis();
+        isFlinging = true;
+        handler.postDelayed(tick, TICK_MS);
+        return true;
+    }
+
+    /**
+     * Stops the current fling, if any.
+     */
+    void cancel() {
+        if (isFlinging) {
+            handler.removeCallbacks(tick);
+            isFlinging = false;
+        }
+    }
+
+    /**
+     * Estimates the velocity from the oldest and newest samples within
+     * {@link #VELOCITY_WINDOW_MS} of the last one.
+     *
+     * @return {@code true} if there was enough data to estimate the velocity.
+     */
+    private boolean computeVelocity() {
+        if (sampleCount < 2) {
+            return false;
+        }
+        long newestTime = sampleTimes[sampleHead];
+        int oldest = sampleHead;
+        for (int i = 1; i < sampleCount; i++) {
+            int index = (sampleHead - i + MAX_SAMPLES) % MAX_SAMPLES;
+            if (newestTime - sampleTimes[index] > VELOCITY_WINDOW_MS) {
+                break;
+            }
+            oldest = index;
+        }
+        long duration = newestTime - sampleTimes[oldest];
+        if (duration <= 0) {
+            return false;
+        }
+        float seconds = duration / 1000.0f;
+        velocityX = horizontal ? (sampleX[sampleHead] - sampleX[oldest]) / seconds : 0;
+        velocityY = vertical ? (sampleY[sampleHead] - sampleY[oldest]) / seconds : 0;
+        return true;
+    }
+
+    /**
+     * Advances the fling by the time elapsed since the last tick and sends the
+     * accumulated scroll delta.
+     */
+    private void onTick() {
+        long now = SystemClock.uptimeMillis();
+        float seconds = (now - lastTickTime) / 1000.0f;
+        lastTickTime = now;
+
+        // Integrate the exponentially decaying velocity over the elapsed time.
+        float decay = (float) Math.exp(-DECAY_RATE * seconds);
+        remainderX += velocityX * (1 - decay) / DECAY_RATE;
+        remainderY += velocityY * (1 - decay) / DECAY_RATE;
+        velocityX *= decay;
+        velocityY *= decay;
+
+        int deltaX = Math.abs(remainderX) >= MIN_SCROLL_DELTA ? (int) remainderX : 0;
+        int deltaY = Math.abs(remainderY) >= MIN_SCROLL_DELTA ? (int) remainderY : 0;
+        if (deltaX != 0 || deltaY != 0) {
+            anymoteSender.sendScroll(deltaX, deltaY);
+            remainderX -= deltaX;
+            remainderY -= deltaY;
+        }
+
+        if (Math.max(Math.abs(velocityX), Math.abs(velocityY)) < STOP_VELOCITY) {
+            isFlinging = false;
+            return;
+        }
+        handler.postDelayed(tick, TICK_MS);
+    }
+}
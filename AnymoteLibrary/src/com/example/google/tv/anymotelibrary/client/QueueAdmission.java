@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of messages waiting in the send queue of an
+ * {@link AnymoteSender}.
+ * <p>
+ * A message reserves room before it is queued and frees it once handled.
+ * Continuous events, such as pointer moves, are dropped when the queue is full
+ * since a later one supersedes them; discrete events, such as keys, are
+ * rejected, or wait for room if blocking is enabled. This class does not
+ * depend on Android so that it can be benchmarked on a plain JVM.
+ */
+final class QueueAdmission {
+
+    /** Message dropped when the queue is full */
+    static final int CONTINUOUS = 0;
+
+    /** Message that waits for room when blocking, or is rejected */
+    static final int DISCRETE = 1;
+
+    /** Message always admitted, such as a connection message */
+    static final int ALWAYS = 2;
+
+    /** Number of messages queued and not handled yet */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /** Number of messages dropped or rejected because the queue was full */
+    private final AtomicInteger overflowCount = new AtomicInteger();
+
+    private volatile int capacity;
+    private volatile boolean blocking;
+    private volatile long blockTimeoutMs;
+
+    /** Threads blocked on a full queue wait on this lock */
+    private final Object lock = new Object();
+    private volatile int blockedSenders;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of messages waiting.
+     * @param blockTimeoutMs maximum time a discrete message waits for room.
+     */
+    QueueAdmission(int capacity, long blockTimeoutMs) {
+        this.capacity = capacity;
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+        wakeBlockedSenders();
+    }
+
+    /**
+     * Sets whether discrete messages wait for room in a full queue. They do
+     * not by default, since they are mostly sent from the UI thread.
+     *
+     * @param block whether to wait.
+     * @param timeoutMs maximum time to wait.
+     */
+    void setBlocking(boolean block, long timeoutMs) {
+        blocking = block;
+        blockTimeoutMs = timeoutMs;
+    }
+
+    int getDepth() {
+        return depth.get();
+    }
+
+    int getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Reserves room for a message.
+     *
+     * @param admission {@link #CONTINUOUS}, {@link #DISCRETE} or
+     *            {@link #ALWAYS}.
+     * @return {@code true} if the message may be queued.
+     */
+    boolean admit(int admission) {
+        if (admission == ALWAYS) {
+            depth.incrementAndGet();
+            return true;
+        }
+        if (tryReserve()) {
+            return true;
+        }
+        if (admission == DISCRETE && blocking && awaitRoom()) {
+            return true;
+        }
+        overflowCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Frees the room of a handled message.
+     */
+    void release() {
+        depth.decrementAndGet();
+        wakeBlockedSenders();
+    }
+
+    private boolean tryReserve() {
+        while (true) {
+            int current = depth.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (depth.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits up to the block timeout for room in the queue, and reserves it.
+     */
+    private boolean awaitRoom() {
+        long deadline = System.nanoTime() / 1000000 + blockTimeoutMs;
+        synchronized (lock) {
+            blockedSenders++;
+            try {
+                while (!tryReserve()) {
+                    long remaining = deadline - System.nanoTime() / 1000000;
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    lock.wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                blockedSenders--;
+            }
+        }
+    }
+
+    private void wakeBlockedSenders() {
+        if (blockedSenders > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Messages.FlingResult;
+
+import android.os.SystemClock;
+
+import com.example.google.tv.anymotelibrary.util.ResultFuture;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Discrete messages, such as keys, sent while the connection is down. They
+ * are replayed in order once a connection to the same device is up again, and
+ * dropped once they are older than the replay timeout.
+ * <p>
+ * A reconnection creates a new {@link AnymoteSender}, so the buffer is shared
+ * by the senders of successive connections to a device: the old one fills it
+ * and the new one replays it.
+ */
+final class ReplayBuffer {
+
+    /** Maximum number of messages kept */
+    private static final int CAPACITY = 32;
+
+    /**
+     * A buffered message.
+     */
+    static final class Entry {
+        final int what;
+        final Object obj;
+        final int arg1;
+        final int arg2;
+        final long expiryTime;
+
+        /** Result of a buffered fling */
+        final ResultFuture<FlingResult> flingFuture;
+
+        Entry(int what, Object obj, int arg1, int arg2, long expiryTime,
+                ResultFuture<FlingResult> flingFuture) {
+            this.what = what;
+            this.obj = obj;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.expiryTime = expiryTime;
+            this.flingFuture = flingFuture;
+        }
+    }
+
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    /** Connected sender that replays the messages, if any */
+    private AnymoteSender target;
+
+    private int replayedCount;
+    private int expiredCount;
+
+    /**
+     * Adds a message, or replays it right away if a connection is up.
+     */
+    synchronized void add(Entry entry) {
+        entries.add(entry);
+        if (target != null) {
+            drain();
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        while (!entries.isEmpty()
+                && (entries.size() > CAPACITY || entries.getFirst().expiryTime <= now)) {
+            expire(entries.removeFirst());
+        }
+    }
+
+    /**
+     * Replays the buffered messages on a connected sender, and any message
+     * added until {@link #detach(AnymoteSender)} is called.
+     */
+    synchronized void attach(AnymoteSender sender) {
+        target = sender;
+        drain();
+    }
+
+    /**
+     * Stops replaying messages on a sender that lost its connection.
+     */
+    synchronized void detach(AnymoteSender sender) {
+        if (target == sender) {
+            target = null;
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    synchronized int getReplayedCount() {
+        return replayedCount;
+    }
+
+    synchronized int getExpiredCount() {
+        return expiredCount;
+    }
+
+    private void drain() {
+        long now = SystemClock.uptimeMillis();
+        while (!entries.isEmpty()) {
+            Entry entry = entries.removeFirst();
+            if (entry.expiryTime <= now) {
+                expire(entry);
+            } else {
+                target.replay(entry);
+                replayedCount++;
+            }
+        }
+    }
+
+    private void expire(Entry entry) {
+        expiredCount++;
+        if (entry.flingFuture != null) {
+            entry.flingFuture.setException(
+                    new TimeoutException("Fling expired before the connection was restored"));
+        }
+    }
+}
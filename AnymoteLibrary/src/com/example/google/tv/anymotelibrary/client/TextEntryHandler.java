@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+import com.google.anymote.Key.Code;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+
+/**
+ * Handler for text entry. Instantiate this handler for an editable text field
+ * on the remote app to mirror its contents into the focused text field on the
+ * connected Google TV.
+ * <p>
+ * Edits are batched while the user types and sent as the difference between
+ * the text the TV already has and the local text: deleted characters as
+ * backspace key presses, inserted text as a single string data message. Only
+ * characters that cannot be part of a string message, such as new lines, are
+ * sent as key presses.
+ * <p>
+ * All edits are made at the end of the TV text field: the cursor of the field
+ * is assumed to be at the end of the text sent, where the messages of this
+ * handler leave it. An edit inside the local text clears the TV text from the
+ * first changed character to the end and types the rest again. Anymote has no
+ * key to move the cursor to the end, so call {@link #reset()} if the cursor
+ * may have been moved on the TV, e.g. when the focused text field changes.
+ * Backspace characters in the local text delete the character before them,
+ * as typing them would on the TV.
+ */
+public final class TextEntryHandler implements TextWatcher {
+
+    /**
+     * Time without edits after which pending edits are sent.
+     */
+    private static final int BATCH_DELAY_MS = 150;
+
+    /**
+     * Maximum time an edit may wait while the user keeps typing.
+     */
+    private static final int MAX_BATCH_DELAY_MS = 500;
+
+    /**
+     * Interface to send Anymote messages.
+     */
+    private final AnymoteSender anymoteSender;
+
+    /**
+     * Schedules sending of pending edits.
+     */
+    private final Handler handler;
+
+    /**
+     * Text the TV is known to have.
+     */
+    private String sentText;
+
+    /**
+     * Latest text entered locally.
+     */
+    private String currentText;
+
+    /**
+     * Time of the oldest edit not sent yet, or {@code 0} if there is none.
+     */
+    private long firstPendingEditTime;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param anymoteSender Sends Anymote messages to Google TV.
+     */
+    public TextEntryHandler(AnymoteSender anymoteSender) {
+        this.anymoteSender = anymoteSender;
+        handler = new Handler();
+        sentText = "";
+        currentText = "";
+    }
+
+    /**
+     * Sets the local text. The difference with the text already sent is sent
+     * once the user pauses typing.
+     *
+     * @param text the full local text.
+     */
+    public void setText(CharSequence text) {
+        currentText = applyBackspaces("", text);
+        scheduleFlush();
+    }
+
+    /**
+     * Appends text to the local text.
+     *
+     * @param text text to append.
+     */
+    public void append(CharSequence text) {
+        currentText = applyBackspaces(currentText, text);
+        scheduleFlush();
+    }
+
+    /**
+     * Deletes characters at the end of the local text.
+     *
+     * @param count number of characters to delete.
+     */
+    public void deleteBackward(int count) {
+        setText(currentText.substring(0, Math.max(0, currentText.length() - count)));
+    }
+
+    /**
+     * Forgets the text sent so far, e.g. when the focused text field on the TV
+     * changes.
+     */
+    public void reset() {
+        handler.removeCallbacks(flushRunnable);
+        firstPendingEditTime = 0;
+        sentText = "";
+        currentText = "";
+    }
+
+    /**
+     * Immediately sends the edits that are still pending.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        firstPendingEditTime = 0;
+
+        final String sent = sentText;
+        final String current = currentText;
+        int common = 0;
+        int max = Math.min(sent.length(), current.length());
+        while (common < max && sent.charAt(common) == current.charAt(common)) {
+            common++;
+        }
+
+        for (int i = sent.length(); i > common; i--) {
+            anymoteSender.sendKeyPress(Code.KEYCODE_DEL);
+        }
+        sendInsertion(current, common);
+        sentText = current;
+    }
+
+    /**
+     * Appends text, a backspace deleting the character before it rather than
+     * being kept, so that the local text is what the TV field shows.
+     */
+    private static String applyBackspaces(String base, CharSequence text) {
+        StringBuilder builder = new StringBuilder(base.length() + text.length());
+        builder.append(base);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\b') {
+                builder.append(c);
+            } else if (builder.length() > 0) {
+                builder.setLength(builder.length() - 1);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sends the end of a string, starting at {@code start}. Runs of regular
+     * characters are sent as string data messages.
+     */
+    private void sendInsertion(String text, int start) {
+        int runStart = start;
+        for (int i = start; i < text.length(); i++) {
+            Code code = getKeyCode(text.charAt(i));
+            if (code != null) {
+                if (i > runStart) {
+                    anymoteSender.sendData(text.substring(runStart, i));
+                }
+                anymoteSender.sendKeyPress(code);
+                runStart = i + 1;
+            }
+        }
+        if (text.length() > runStart) {
+            anymoteSender.sendData(text.substring(runStart));
+        }
+    }
+
+    /**
+     * Returns the key code to send for characters that have to be sent as key
+     * presses, or {@code null} for characters that can be sent as a string.
+     */
+    private static Code getKeyCode(char c) {
+        switch (c) {
+            case '\n':
+                return Code.KEYCODE_ENTER;
+            case '\t':
+                return Code.KEYCODE_TAB;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Schedules sending of pending edits once the user pauses typing, but no
+     * later than {@link #MAX_BATCH_DELAY_MS} after the oldest pending edit.
+     */
+    private void scheduleFlush() {
+        long now = SystemClock.uptimeMillis();
+        if (firstPendingEditTime == 0) {
+            firstPendingEditTime = now;
+        }
+        long flushTime = Math.min(now + BATCH_DELAY_MS,
+                firstPendingEditTime + MAX_BATCH_DELAY_MS);
+        handler.removeCallbacks(flushRunnable);
+        handler.postAtTime(flushRunnable, flushTime);
+    }
+
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        // Nothing to do.
+    }
+
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        // Nothing to do.
+    }
+
+    public void afterTextChanged(Editable s) {
+        setText(s);
+    }
+}
@@ -17,6 +17,8 @@
 package com.example.google.tv.anymotelibrary.client;
 
 import android.os.CountDownTimer;
+import android.os.Handler;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
@@ -31,6 +33,8 @@ import com.example.google.tv.anymotelibrary.util.Action;
  * 
  */
 public final class TouchHandler implements View.OnTouchListener {
+    private static final String LOG_TAG = "TouchHandler";
+
     /**
      * Defines the kind of events this handler is supposed to generate.
      */
@@ -56,8 +60,19 @@ public final class TouchHandler implements View.OnTouchListener {
      */
     private final ScaleGestureDetector scaleGestureDetector;
 
+    /**
+     * Listener of the scale gesture detector, {@code null} if there is none.
+     */
+    private final MultitouchHandler multitouchHandler;
+
     private final float zoomThreshold;
 
+    /**
+     * Continues scrolling after the finger is lifted in scroll modes,
+     * {@code null} in other modes.
+     */
+    private final KineticScroller kineticScroller;
+
     /**
      * Max thresholds for a sequence to be considered a click.
      */
@@ -78,6 +93,17 @@ public final class TouchHandler implements View.OnTouchListener {
     private static final float MT_SCROLL_END_THRESHOLD = 1.4f;
     private static final float MT_ZOOM_SCALE_THRESHOLD = 1.8f;
 
+    /**
+     * Minimum time between two zoom steps of a pinch, roughly the time the TV
+     * takes to render one zoom level.
+     */
+    private static final int MT_ZOOM_MIN_STEP_INTERVAL_MS = 200;
+
+    /**
+     * Maximum number of zoom steps owed by a pinch faster than the TV.
+     */
+    private static final int MT_ZOOM_MAX_PENDING_STEPS = 2;
+
     /**
      * Describes the way touches should be interpreted.
      */
@@ -96,15 +122,23 @@ public final class TouchHandler implements View.OnTouchListener {
      */
     public TouchHandler(View view, Mode mode, AnymoteSender anymoteSender) {
         if (Mode.POINTER_MULTITOUCH.equals(mode)) {
+            this.multitouchHandler = new MultitouchHandler();
             this.scaleGestureDetector = ScaleGestureDetectorFactory
-                    .createScaleGestureDetector(view, new MultitouchHandler());
+                    .createScaleGestureDetector(view, multitouchHandler);
             this.mode = Mode.POINTER;
         } else {
+            this.multitouchHandler = null;
             this.scaleGestureDetector = null;
             this.mode = mode;
         }
 
         this.anymoteSender = anymoteSender;
+        if (this.mode == Mode.SCROLL_VERTICAL || this.mode == Mode.SCROLL_HORIZONTAL) {
+            kineticScroller = new KineticScroller(anymoteSender,
+                    this.mode == Mode.SCROLL_HORIZONTAL, this.mode == Mode.SCROLL_VERTICAL);
+        } else {
+            kineticScroller = null;
+        }
         isActive = true;
         zoomThreshold = view.getResources().getInteger(R.integer.zoom_threshold);
         view.setOnTouchListener(this);
@@ -116,6 +150,10 @@ public final class TouchHandler implements View.OnTouchListener {
         }
 
         if (scaleGestureDetector != null) {
+            if (event.getAction() == MotionEvent.ACTION_CANCEL) {
+                // The pinch ends without the zoom steps it still owes.
+                multitouchHandler.cancelZoom();
+            }
             scaleGestureDetector.onTouchEvent(event);
             if (scaleGestureDetector.isInProgress()) {
                 if (state != null) {
@@ -131,19 +169,34 @@ public final class TouchHandler implements View.OnTouchListener {
         long timestamp = event.getEventTime();
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
+                if (kineticScroller != null) {
+                    kineticScroller.cancel();
+                    kineticScroller.clear();
+                    kineticScroller.addMovement(x, y, timestamp);
+                }
                 state = new Sequence(x, y, timestamp);
                 return true;
 
             case MotionEvent.ACTION_CANCEL:
+                if (kineticScroller != null) {
+                    kineticScroller.clear();
+                }
                 state = null;
                 return true;
 
             case MotionEvent.ACTION_UP:
+                if (kineticScroller != null && state != null) {
+                    kineticScroller.addMovement(x, y, timestamp);
+                    kineticScroller.fling();
+                }
                 boolean handled = state != null && state.handleUp(x, y, timestamp);
                 state = null;
                 return handled;
 
             case MotionEvent.ACTION_MOVE:
+                if (kineticScroller != null) {
+                    kineticScroller.addMovement(x, y, timestamp);
+                }
                 return state != null && state.handleMove(x, y, timestamp);
 
             default:
@@ -156,6 +209,12 @@ public final class TouchHandler implements View.OnTouchListener {
      */
     public void setActive(boolean active) {
         isActive = active;
+        if (!active && kineticScroller != null) {
+            kineticScroller.cancel();
+        }
+        if (!active && multitouchHandler != null) {
+            multitouchHandler.cancelZoom();
+        }
     }
 
     /**
@@ -290,7 +349,7 @@ public final class TouchHandler implements View.OnTouchListener {
          * @return {@code true} if any action was taken
          */
         public boolean handleMove(int x, int y, long timestamp) {
-            if (mode == Mode.POINTER) {
+            if (mode == Mode.POINTER && clickDownTimer != null) {
                 if (!isMove(x, y)) {
                     // Stand still while it's not a move to avoid a movement
                     // when a click
@@ -300,13 +359,14 @@ public final class TouchHandler implements View.OnTouchListener {
                 }
             }
 
-            long timeDelta = timestamp - lastTimestamp;
             int deltaX = x - lastX;
             int deltaY = y - lastY;
 
             switch (mode) {
                 case POINTER:
-                    anymoteSender.sendMoveRelative(deltaX, deltaY);
+                    if (deltaX != 0 || deltaY != 0) {
+                        anymoteSender.sendMoveRelative(deltaX, deltaY);
+                    }
                     break;
 
                 case SCROLL_VERTICAL:
@@ -348,6 +408,26 @@ public final class TouchHandler implements View.OnTouchListener {
         private float lastScrollY;
         private boolean isScrolling;
 
+        private final ZoomAccumulator zoomAccumulator = new ZoomAccumulator(
+                MT_ZOOM_SCALE_THRESHOLD, MT_ZOOM_MIN_STEP_INTERVAL_MS, MT_ZOOM_MAX_PENDING_STEPS);
+
+        /**
+         * Sends the zoom steps still owed when a pinch ends.
+         */
+        private final Handler owedZoomHandler = new Handler();
+
+        private final Runnable zoomInTask = new Runnable() {
+            public void run() {
+                Action.ZOOM_IN.execute(anymoteSender);
+            }
+        };
+
+        private final Runnable zoomOutTask = new Runnable() {
+            public void run() {
+                Action.ZOOM_OUT.execute(anymoteSender);
+            }
+        };
+
         public boolean onScale(ScaleGestureDetector detector) {
             float scaleFactor = detector.getScaleFactor();
             float deltaX = scaleGestureDetector.getFocusX() - lastScrollX;
@@ -382,6 +462,7 @@ public final class TouchHandler implements View.OnTouchListener {
             }
 
             if (isScrolling) {
+                zoomAccumulator.rebase(detector.getCurrentSpan());
                 if (shouldTriggerScrollEvent(deltaX)
                         || shouldTriggerScrollEvent(deltaY)) {
                     executeScrollEvent(deltaX, deltaY);
@@ -389,8 +470,10 @@ public final class TouchHandler implements View.OnTouchListener {
                 return false;
             }
 
-            if (!isWithinInvRange(scaleFactor, MT_ZOOM_SCALE_THRESHOLD)) {
-                executeZoomEvent(scaleFactor);
+            int zoomStep = zoomAccumulator.update(
+                    detector.getCurrentSpan(), detector.getEventTime());
+            if (zoomStep != 0) {
+                executeZoomEvent(zoomStep);
                 return true;
             }
 
@@ -399,11 +482,31 @@ public final class TouchHandler implements View.OnTouchListener {
 
         public boolean onScaleBegin(ScaleGestureDetector detector) {
             resetScroll();
+            // A new pinch replaces the steps owed by the previous one.
+            owedZoomHandler.removeCallbacks(zoomInTask);
+            owedZoomHandler.removeCallbacks(zoomOutTask);
+            zoomAccumulator.begin(detector.getCurrentSpan());
             return true;
         }
 
         public void onScaleEnd(ScaleGestureDetector detector) {
-            // Do nothing
+            int owed = zoomAccumulator.end();
+            long delay = Math.max(0, zoomAccumulator.getNextStepTime() - detector.getEventTime());
+            for (int i = 0; i < Math.abs(owed); i++) {
+                owedZoomHandler.postDelayed(owed > 0 ? zoomInTask : zoomOutTask,
+                        delay + i * MT_ZOOM_MIN_STEP_INTERVAL_MS);
+            }
+            Log.v(LOG_TAG, "Pinch sent " + zoomAccumulator.getStepCount()
+                    + " zoom steps for " + zoomAccumulator.getUpdateCount() + " scale events");
+        }
+
+        /**
+         * Drops the zoom steps owed by the pinch, whether posted or not yet
+         * counted.
+         */
+        void cancelZoom() {
+            owedZoomHandler.removeCallbacksAndMessages(null);
+            zoomAccumulator.cancel();
         }
 
         /**
@@ -425,11 +528,11 @@ public final class TouchHandler implements View.OnTouchListener {
         /**
          * Sends zoom event.
          * 
-         * @param scaleFactor scale factor.
+         * @param direction positive to zoom in, negative to zoom out.
          */
-        private void executeZoomEvent(float scaleFactor) {
+        private void executeZoomEvent(int direction) {
             resetScroll();
-            if (scaleFactor > 1.0f) {
+            if (direction > 0) {
                 Action.ZOOM_IN.execute(anymoteSender);
             } else {
                 Action.ZOOM_OUT.execute(anymoteSender);
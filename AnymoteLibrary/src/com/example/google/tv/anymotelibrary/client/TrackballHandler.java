@@ -24,6 +24,10 @@ import com.example.google.tv.anymotelibrary.R;
 
 /**
  * The trackball logic.
+ * <p>
+ * In dpad mode, motion is turned into directional events by a
+ * {@link DpadAccumulator}, which scales it by its speed and caps the rate of
+ * events.
  */
 public final class TrackballHandler {
 
@@ -80,10 +84,9 @@ public final class TrackballHandler {
     private final Listener listener;
 
     /**
-     * Parameter that controls the threshold for the amount of trackball motion
-     * needed to generate a directional event.
+     * Turns trackball motion into directional events.
      */
-    private final float dpadThreshold;
+    private final DpadAccumulator dpadAccumulator;
 
     private final int scrollAmount;
 
@@ -97,11 +100,6 @@ public final class TrackballHandler {
      */
     private Mode mode;
 
-    /**
-     * Used to store the amounts of trackball motion observed.
-     */
-    private float dpadAccuX, dpadAccuY;
-
     /**
      * Plays some sounds on trackball events.
      */
@@ -110,8 +108,8 @@ public final class TrackballHandler {
     TrackballHandler(Listener listener, Context context) {
         this.listener = listener;
         this.mode = Mode.SCROLL;
-        dpadThreshold = (float) context.getResources().getInteger(
-                R.integer.dpad_threshold) / 100;
+        dpadAccumulator = new DpadAccumulator((float) context.getResources().getInteger(
+                R.integer.dpad_threshold) / 100);
         scrollAmount = context.getResources().getInteger(
                 R.integer.scroll_amount);
     }
@@ -169,29 +167,31 @@ public final class TrackballHandler {
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
             playSoundOnDPad();
             listener.onClick();
-            resetMotionAccumulators();
+            dpadAccumulator.reset();
             return true;
         }
-        dpadAccuX += event.getX();
-        dpadAccuY += event.getY();
-        if (Math.abs(dpadAccuX) > dpadThreshold) {
-            playSoundOnDPad();
-            listener.onDirectionalEvent(
-                    dpadAccuX > 0 ? Direction.RIGHT : Direction.LEFT);
-            resetMotionAccumulators();
-        }
-        if (Math.abs(dpadAccuY) > dpadThreshold) {
-            playSoundOnDPad();
-            listener.onDirectionalEvent(
-                    dpadAccuY > 0 ? Direction.DOWN : Direction.UP);
-            resetMotionAccumulators();
-        }
+        dpadAccumulator.update(event.getX(), event.getY(), event.getEventTime());
+        emitSteps(dpadAccumulator.getStepsX(), Direction.RIGHT, Direction.LEFT);
+        emitSteps(dpadAccumulator.getStepsY(), Direction.DOWN, Direction.UP);
         return true;
     }
 
-    private void resetMotionAccumulators() {
-        dpadAccuX = 0;
-        dpadAccuY = 0;
+    /**
+     * Emits directional events along an axis.
+     * 
+     * @param steps number of events, positive in the positive direction
+     * @param positive direction of positive motion
+     * @param negative direction of negative motion
+     */
+    private void emitSteps(int steps, Direction positive, Direction negative) {
+        if (steps == 0) {
+            return;
+        }
+        playSoundOnDPad();
+        Direction direction = steps > 0 ? positive : negative;
+        for (int i = 0; i < Math.abs(steps); i++) {
+            listener.onDirectionalEvent(direction);
+        }
     }
 
     /**
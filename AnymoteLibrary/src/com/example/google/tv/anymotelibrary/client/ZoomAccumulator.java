@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.client;
+
+/**
+ * Turns a continuous pinch into discrete zoom steps. The logarithm of the
+ * span between the two pointers is integrated, and one step is emitted each
+ * time it moves by the log of the step scale. Steps are rate limited so the
+ * TV is never asked to zoom faster than it can render, and the number of
+ * steps owed is bounded so a fast pinch does not leave stale zooms behind.
+ * Steps still owed when the pinch ends are returned by {@link #end()}, to be
+ * sent at the step rate.
+ */
+final class ZoomAccumulator {
+
+    /**
+     * Log of the scale factor that makes up one zoom step.
+     */
+    private final float stepLog;
+
+    /**
+     * Minimum time between two zoom steps.
+     */
+    private final long minStepIntervalMs;
+
+    /**
+     * Maximum number of steps that may be owed while rate limited.
+     */
+    private final int maxPendingSteps;
+
+    /**
+     * Log of the span at which the accumulated scale is zero.
+     */
+    private float referenceLogSpan;
+
+    /**
+     * Log of the last span.
+     */
+    private float lastLogSpan;
+
+    /**
+     * Time of the last emitted step.
+     */
+    private long lastStepTime;
+
+    /**
+     * Number of updates and of emitted steps, for reporting.
+     */
+    private int updateCount;
+    private int stepCount;
+
+    /**
+     * Constructor.
+     *
+     * @param stepScale scale factor that makes up one zoom step, greater than
+     *            1.
+     * @param minStepIntervalMs minimum time between two zoom steps.
+     * @param maxPendingSteps maximum number of steps owed while rate limited.
+     */
+    ZoomAccumulator(float stepScale, long minStepIntervalMs, int maxPendingSteps) {
+        if (stepScale <= 1.0f) {
+            throw new IllegalArgumentException("Step scale <= 1.0f: " + stepScale);
+        }
+        this.stepLog = (float) Math.log(stepScale);
+        this.minStepIntervalMs = minStepIntervalMs;
+        this.maxPendingSteps = maxPendingSteps;
+    }
+
+    /**
+     * Starts accumulating from the given span.
+     *
+     * @param span distance between the pointers, in pixels.
+     */
+    void begin(float span) {
+        if (span > 0) {
+            referenceLogSpan = (float) Math.log(span);
+            lastLogSpan = referenceLogSpan;
+        }
+        updateCount = 0;
+        stepCount = 0;
+    }
+
+    /**
+     * Moves the reference to the given span without emitting a step, e.g.
+     * while the gesture is interpreted as a scroll.
+     *
+     * @param span distance between the pointers, in pixels.
+     */
+    void rebase(float span) {
+        updateCount++;
+        if (span > 0) {
+            referenceLogSpan = (float) Math.log(span);
+            lastLogSpan = referenceLogSpan;
+        }
+    }
+
+    /**
+     * Integrates a new span.
+     *
+     * @param span distance between the pointers, in pixels.
+     * @param eventTime time of the event, in milliseconds.
+     * @return {@code 1} to zoom in by one step, {@code -1} to zoom out by one
+     *         step, {@code 0} otherwise.
+     */
+    int update(float span, long eventTime) {
+        updateCount++;
+        if (span <= 0) {
+            return 0;
+        }
+        float logSpan = (float) Math.log(span);
+        lastLogSpan = logSpan;
+        float accumulated = logSpan - referenceLogSpan;
+
+        float maxAccumulated = maxPendingSteps * stepLog;
+        if (accumulated > maxAccumulated) {
+            referenceLogSpan = logSpan - maxAccumulated;
+            accumulated = maxAccumulated;
+        } else if (accumulated < -maxAccumulated) {
+            referenceLogSpan = logSpan + maxAccumulated;
+            accumulated = -maxAccumulated;
+        }
+
+        if (Math.abs(accumulated) < stepLog
+                || eventTime - lastStepTime < minStepIntervalMs) {
+            return 0;
+        }
+        int direction = accumulated > 0 ? 1 : -1;
+        referenceLogSpan += direction * stepLog;
+        lastStepTime = eventTime;
+        stepCount++;
+        return direction;
+    }
+
+    /**
+     * Ends the gesture, counting the whole steps still owed as emitted.
+     *
+     * @return the number of steps owed, positive to zoom in, negative to zoom
+     *         out.
+     */
+    int end() {
+        int steps = (int) ((lastLogSpan - referenceLogSpan) / stepLog);
+        referenceLogSpan += steps * stepLog;
+        stepCount += Math.abs(steps);
+        return steps;
+    }
+
+    /**
+     * Drops the steps owed so far, e.g. when the pinch is cancelled. The
+     * gesture goes on from the current span.
+     */
+    void cancel() {
+        referenceLogSpan = lastLogSpan;
+    }
+
+    /**
+     * Returns the earliest time the next step may be sent, in milliseconds.
+     */
+    long getNextStepTime() {
+        return lastStepTime + minStepIntervalMs;
+    }
+
+    /**
+     * Returns the number of updates and rebases since the gesture began.
+     */
+    int getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Returns the number of steps emitted since the gesture began.
+     */
+    int getStepCount() {
+        return stepCount;
+    }
+}
@@ -15,12 +15,12 @@
 package com.example.google.tv.anymotelibrary.connection;
 
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.client.AnymoteSender;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
 
 /**
  * This class manages the requests for acknowledgments that are sent to the
@@ -61,6 +61,12 @@ public final class AckManager {
          * Called on connection timeout.
          */
         public void onTimeout();
+
+        /**
+         * Called when the server acknowledged the ping sent by
+         * {@link AckManager#revalidate(long)}.
+         */
+        public void onRevalidated();
     }
 
     /**
@@ -70,9 +76,7 @@ public final class AckManager {
      * @param sender Sends Anymote events to server.
      */
     public AckManager(final Listener listener, final AnymoteSender sender) {
-        HandlerThread handlerThread = new HandlerThread("AckHandlerThread");
-        handlerThread.start();
-        handler = new AckHandler(handlerThread.getLooper());
+        handler = new AckHandler(EventLoop.getLooper());
         connectionListener = listener;
         this.sender = sender;
     }
@@ -95,14 +99,26 @@ public final class AckManager {
      * Stops monitoring connection to Anymote server.
      */
     public void stop() {
-        handler.removeMessages(Action.PING, Action.START);
+        handler.removeMessages(Action.PING, Action.START, Action.REVALIDATE_TIMEOUT);
+    }
+
+    /**
+     * Checks right away that the connection still works, for instance after
+     * the network came back, then resumes monitoring it.
+     * 
+     * @param timeoutMs time to wait for the acknowledgment before the
+     *            connection is considered lost.
+     */
+    public void revalidate(long timeoutMs) {
+        handler.sendMessage(handler.obtainMessage(Action.REVALIDATE.ordinal(), timeoutMs));
     }
 
     /**
-     * Stop the ACK handling thread.
+     * Stops handling ACKs. The event loop is shared, so only the messages of
+     * this manager are removed.
      */
     public void quit() {
-        handler.getLooper().quit();
+        handler.removeCallbacksAndMessages(null);
     }
 
     /**
@@ -117,7 +133,7 @@ public final class AckManager {
      * Enum defining action for messages sent to AckHandler.
      */
     private enum Action {
-        START, PING, ACK,
+        START, PING, ACK, REVALIDATE, REVALIDATE_TIMEOUT,
     }
 
     /**
@@ -160,6 +176,14 @@ public final class AckManager {
                 case ACK:
                     handleAck();
                     break;
+
+                case REVALIDATE:
+                    handleRevalidate((Long) msg.obj);
+                    break;
+
+                case REVALIDATE_TIMEOUT:
+                    handleTimeout();
+                    break;
             }
         }
 
@@ -178,12 +202,23 @@ public final class AckManager {
         }
 
         private void handleTimeout() {
-            removeMessages(Action.PING, Action.ACK);
+            removeMessages(Action.PING, Action.ACK, Action.REVALIDATE_TIMEOUT);
             connectionTimeout();
         }
 
         private void handleAck() {
             lostAcks = 0;
+            if (hasMessages(Action.REVALIDATE_TIMEOUT.ordinal())) {
+                removeMessages(Action.REVALIDATE_TIMEOUT.ordinal());
+                connectionListener.onRevalidated();
+                handleStart();
+            }
+        }
+
+        private void handleRevalidate(long timeoutMs) {
+            removeMessages(Action.PING, Action.REVALIDATE_TIMEOUT);
+            sender.sendPing();
+            sendMessageDelayed(obtainMessage(Action.REVALIDATE_TIMEOUT), timeoutMs);
         }
 
         private void removeMessages(Action... actions) {
@@ -20,35 +20,52 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.SocketException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import android.os.Handler;
 import android.util.Log;
 
+import com.example.google.tv.anymotelibrary.util.EventLoop;
+
 /**
  * An implementation of a trivial broadcast discovery protocol.
  * <p>
  * This client sends L3 broadcasts to probe for particular services on the
- * network.
+ * network. Probes are sent from the {@link EventLoop}; {@link #run()} blocks
+ * receiving the responses.
+ * <p>
+ * A burst of probes goes out first, so that a lost packet costs a few hundred
+ * milliseconds rather than a full interval, then the interval doubles. Probing
+ * stops once no new device answered for a few probes after the burst.
  */
 public class BroadcastDiscoveryClient implements Runnable {
 
     private static final String LOG_TAG = "BroadcastDiscoveryClient";
 
     /**
-     * UDP port to send probe messages to.
+     * Times of the first probes, from the start of the scan.
      */
-    private static final int BROADCAST_SERVER_PORT = 9101;
+    private static final int[] PROBE_BURST_MS = {
+            0, 100, 300, 700 };
 
     /**
-     * Frequency of probe messages.
+     * Interval between probes after the burst, doubled after each probe.
      */
-    private static final int PROBE_INTERVAL_MS = 2000;
+    private static final int PROBE_BACKOFF_INITIAL_MS = 1000;
 
     /**
-     * Command name for a discovery request.
+     * Maximum interval between probes.
      */
-    private static final String COMMAND_DISCOVER = "discover";
+    private static final int PROBE_BACKOFF_MAX_MS = 8000;
+
+    /**
+     * Number of probes in a row after the burst with no new device, after
+     * which the results are stable. Probes of the burst do not count: they
+     * are too close together for slow TVs to answer them.
+     */
+    private static final int STABLE_PROBE_COUNT = 2;
 
     /**
      * Broadcast address of the local device.
@@ -56,14 +73,42 @@ public class BroadcastDiscoveryClient implements Runnable {
     private final Inet4Address mBroadcastAddress;
 
     /**
-     * Timer to send probes.
+     * Handler of the event loop, that sends probes.
      */
-    private final Timer mProbeTimer;
+    private final Handler mProbeHandler;
 
     /**
-     * TimerTask to send probes.
+     * Task that sends a probe and schedules the next one.
      */
-    private final TimerTask mProbeTimerTask;
+    private final Runnable mProbeTask;
+
+    /**
+     * Number of probes sent since the schedule started. Only used on the event
+     * loop.
+     */
+    private int mProbeCount;
+
+    /**
+     * Delay before the next probe once the burst is over. Only used on the
+     * event loop.
+     */
+    private int mBackoffMs;
+
+    /**
+     * Number of probes in a row with no new device. Only used on the event
+     * loop.
+     */
+    private int mQuietProbeCount;
+
+    /**
+     * Devices that answered, as name, address and port.
+     */
+    private final Set<String> mResponders = new HashSet<String>();
+
+    /**
+     * Whether a device answered for the first time since the last probe.
+     */
+    private final AtomicBoolean mNewResponder = new AtomicBoolean();
 
     /**
      * Send/receive socket.
@@ -136,6 +181,12 @@ public class BroadcastDiscoveryClient implements Runnable {
          * @param advert The advertisement containing device information.
          */
         void onDeviceDiscovered(BroadcastAdvertisement advert);
+
+        /**
+         * Called on the event loop when no new device answered for a few
+         * probes, and probing stopped.
+         */
+        void onResultsStable();
     }
 
     /**
@@ -157,11 +208,12 @@ public class BroadcastDiscoveryClient implements Runnable {
             throw new RuntimeException();
         }
 
-        mProbeTimer = new Timer();
-        mProbeTimerTask = new TimerTask() {
-                @Override
+        mProbeHandler = new Handler(EventLoop.getLooper());
+        mProbeTask = new Runnable() {
             public void run() {
-                BroadcastDiscoveryClient.this.sendProbe();
+                if (!mSocket.isClosed()) {
+                    onProbeTime();
+                }
             }
         };
         Log.i(LOG_TAG, "Starting client on address " + mBroadcastAddress);
@@ -171,7 +223,7 @@ public class BroadcastDiscoveryClient implements Runnable {
         Log.i(LOG_TAG, "Broadcast client thread starting.");
         byte[] buffer = new byte[256];
 
-        mProbeTimer.schedule(mProbeTimerTask, 0, PROBE_INTERVAL_MS);
+        resetProbes();
 
         while (true) {
             try {
@@ -182,12 +234,72 @@ public class BroadcastDiscoveryClient implements Runnable {
                 // timeout
             } catch (IOException e) {
                 // SocketException - stop() was called
-                mProbeTimer.cancel();
                 break;
             }
         }
         Log.i(LOG_TAG, "Exiting client loop.");
-        mProbeTimer.cancel();
+        mProbeHandler.removeCallbacks(mProbeTask);
+    }
+
+    /**
+     * Restarts the probe schedule with a burst, for example when the network
+     * changed or a new scan joins. Devices that already answered count as new
+     * again.
+     */
+    public void resetProbes() {
+        mProbeHandler.post(new Runnable() {
+            public void run() {
+                mProbeHandler.removeCallbacks(mProbeTask);
+                mProbeCount = 0;
+                mBackoffMs = PROBE_BACKOFF_INITIAL_MS;
+                mQuietProbeCount = 0;
+                synchronized (mResponders) {
+                    mResponders.clear();
+                }
+                mNewResponder.set(false);
+                mProbeTask.run();
+            }
+        });
+    }
+
+    /**
+     * Sends a probe and schedules the next one, or stops once the results are
+     * stable.
+     */
+    private void onProbeTime() {
+        boolean newResponder = mNewResponder.getAndSet(false);
+        if (mProbeCount < PROBE_BURST_MS.length) {
+            // Still in the burst: only answers to the last burst probe on
+            // count.
+        } else if (newResponder) {
+            mQuietProbeCount = 0;
+        } else if (hasResponders()) {
+            mQuietProbeCount++;
+            if (mQuietProbeCount >= STABLE_PROBE_COUNT) {
+                Log.i(LOG_TAG, "Results stable after " + mProbeCount + " probes");
+                if (mListener != null) {
+                    mListener.onResultsStable();
+                }
+                return;
+            }
+        }
+
+        sendProbe();
+        mProbeCount++;
+        int delay;
+        if (mProbeCount < PROBE_BURST_MS.length) {
+            delay = PROBE_BURST_MS[mProbeCount] - PROBE_BURST_MS[mProbeCount - 1];
+        } else {
+            delay = mBackoffMs;
+            mBackoffMs = Math.min(mBackoffMs * 2, PROBE_BACKOFF_MAX_MS);
+        }
+        mProbeHandler.postDelayed(mProbeTask, delay);
+    }
+
+    private boolean hasResponders() {
+        synchronized (mResponders) {
+            return !mResponders.isEmpty();
+        }
     }
 
     /**
@@ -204,9 +316,10 @@ public class BroadcastDiscoveryClient implements Runnable {
     }
 
     /**
-     * Immediately stops the receiver thread, and cancels the probe timer.
+     * Immediately stops the receiver thread, and cancels the probes.
      */
     public void stop() {
+        mProbeHandler.removeCallbacks(mProbeTask);
         if (mSocket != null) {
             mSocket.close();
         }
@@ -220,10 +333,9 @@ public class BroadcastDiscoveryClient implements Runnable {
      * @return a new DatagramPacket
      */
     private DatagramPacket makeRequestPacket(String serviceName, int responsePort) {
-        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
-        byte[] buf = message.getBytes();
-        DatagramPacket packet =
-                new DatagramPacket(buf, buf.length, mBroadcastAddress, BROADCAST_SERVER_PORT);
+        byte[] buf = DiscoveryProtocol.makeRequestMessage(serviceName, responsePort);
+        DatagramPacket packet = new DatagramPacket(
+                buf, buf.length, mBroadcastAddress, DiscoveryProtocol.BROADCAST_SERVER_PORT);
         return packet;
     }
 
@@ -233,27 +345,30 @@ public class BroadcastDiscoveryClient implements Runnable {
      * @param packet The locally-received DatagramPacket
      */
     private void handleResponsePacket(DatagramPacket packet) {
-        String strPacket = new String(packet.getData(), 0, packet.getLength());
-        String tokens[] = strPacket.trim().split("\\s+");
-
-        if (tokens.length != 3) {
-            Log.w(LOG_TAG, "Malformed response: expected 3 tokens, got " + tokens.length);
+        String tokens[] = new String[3];
+        int port = DiscoveryProtocol.parseResponse(
+                mServiceName, packet.getData(), packet.getLength(), tokens);
+        if (port == DiscoveryProtocol.MALFORMED) {
+            Log.w(LOG_TAG, "Malformed response: "
+                    + new String(packet.getData(), 0, packet.getLength()));
+            return;
+        } else if (port < 0) {
             return;
         }
 
-        BroadcastAdvertisement advert;
-        try {
-            String serviceType = tokens[0];
-            if (!serviceType.equals(mServiceName)) {
-                return;
-            }
-            String serviceName = tokens[1];
-            int port = Integer.parseInt(tokens[2]);
-            Inet4Address addr = (Inet4Address) packet.getAddress();
-            Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", " + addr + ", " + port);
-            advert = new BroadcastAdvertisement(serviceName, addr, port);
-        } catch (NumberFormatException e) {
-            return;
+        String serviceName = tokens[1];
+        Inet4Address addr = (Inet4Address) packet.getAddress();
+        Log.v(LOG_TAG, "Broadcast response: " + serviceName + ", " + addr + ", " + port);
+        BroadcastAdvertisement advert = new BroadcastAdvertisement(serviceName, addr, port);
+
+        boolean added;
+        synchronized (mResponders) {
+            added = mResponders.add(
+                    advert.getServiceName() + " " + advert.getServiceAddress() + " "
+                    + advert.getServicePort());
+        }
+        if (added) {
+            mNewResponder.set(true);
         }
 
         if (mListener != null) {
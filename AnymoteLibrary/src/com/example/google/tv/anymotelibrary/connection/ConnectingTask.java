@@ -28,19 +28,25 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.google.tv.anymotelibrary.client.AnymoteSender;
 import com.example.google.tv.anymotelibrary.client.AnymoteClientService.ClientListener;
+import com.example.google.tv.anymotelibrary.connection.HandshakeTimings.Phase;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -49,24 +55,37 @@ import javax.net.ssl.SSLSocketFactory;
 
 /**
  * This task covers entire connection mechanism, including pairing, when
- * necessary.
+ * necessary. It runs on a worker of the {@link EventLoop}, since pairing and
+ * the TLS handshake block.
  */
-public class ConnectingTask extends Thread {
+public class ConnectingTask implements Runnable {
     private static final String REMOTE_NAME = Build.MANUFACTURER + " " + Build.MODEL;
     private static final int RECONNECTION_DELAY_MS = 1000;
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
     private static final String LOG_TAG = "ConnectingActivity";
+    private static final long PREWARMED_SOCKET_TTL_MS = 30 * 1000;
+
+    /** Time a TV has to accept a TCP connection */
+    private static final int CONNECT_TIMEOUT_MS = 5 * 1000;
+
+    /** Time a TV has to answer during the TLS handshake */
+    private static final int HANDSHAKE_TIMEOUT_MS = 10 * 1000;
 
     private final Object secretSync;
     private final AnymoteSender anymoteProxy;
     private final KeyStoreManager keyStore;
+    private final ConnectionMetrics metrics;
+    private final HandshakeTimings timings = new HandshakeTimings();
 
     private TvDevice target;
     private ConnectionListener listener;
-    private boolean isCancelled;
+    private volatile boolean isCancelled;
+    private Future<?> running;
     private String secret;
     private SSLSocket sslsock;
-    private Context context;
+    private final Context context;
+    private Future<SSLSocket> prewarmedSocket;
+    private long prewarmedSince;
 
     /**
      * Connection status enumeration.
@@ -123,8 +142,10 @@ public class ConnectingTask extends Thread {
 
         /**
          * Connection to target device failed.
+         * 
+         * @param anymoteProxy the sender of the task that failed.
          */
-        void onConnectionFailed();
+        void onConnectionFailed(AnymoteSender anymoteProxy);
 
         /**
          * Target device requires secret to continue connecting.
@@ -140,8 +161,15 @@ public class ConnectingTask extends Thread {
 
         /**
          * Connection to target device disconnected.
+         * 
+         * @param anymoteProxy the sender of the connection that was lost.
+         */
+        void onConnectionDisconnected(AnymoteSender anymoteProxy);
+
+        /**
+         * Suspended connection to target device checked and resumed.
          */
-        void onConnectionDisconnected();
+        void onConnectionResumed();
     }
 
     /**
@@ -151,36 +179,44 @@ public class ConnectingTask extends Thread {
      * @param keystoreManager key store manager for maintaining server/client
      *            certificates.
      * @param context context of the foreground Activity which wants to send
-     *            events to the server
+     *            events to the server. Only its application context is kept,
+     *            so that the task does not hold on to the Activity.
      */
     public ConnectingTask(TvDevice device, KeyStoreManager keystoreManager, Context context) {
-        this.context = context;
+        this.context = context.getApplicationContext();
         target = device;
         isCancelled = false;
         secretSync = new Object();
         secret = null;
         keyStore = keystoreManager;
         anymoteProxy = new AnymoteSender(this);
+        metrics = anymoteProxy.getMetrics();
     }
 
     /**
      * Initialize background connection; notify the listener about results.
      */
-    @Override
     public void run() {
-        Looper.prepare();
         boolean state = connect();
-        state = anymoteProxy.attemptToConnect(sslsock);
+        if (state) {
+            state = anymoteProxy.attemptToConnect(sslsock);
+        }
         if (isCancelled) {
             disconnect();
         } else {
+            if (!state) {
+                // Release the socket and the sender of the failed attempt.
+                disconnect();
+            }
+            metrics.enterState(state ? ConnectionMetrics.State.CONNECTED
+                    : ConnectionMetrics.State.DISCONNECTED);
             if (listener != null) {
                 if (state) {
 
                     listener.onConnected(target, anymoteProxy);
 
                 } else {
-                    listener.onConnectionFailed();
+                    listener.onConnectionFailed(anymoteProxy);
                 }
             }
         }
@@ -193,11 +229,19 @@ public class ConnectingTask extends Thread {
      * @return true, if connection succeeded.
      */
     protected boolean connect() {
+        if (takePrewarmedSocket()) {
+            Log.i(LOG_TAG, "Connected to " + target.toString() + " ahead of time");
+            return true;
+        }
+        metrics.enterState(ConnectionMetrics.State.PAIRING);
+        long start = SystemClock.uptimeMillis();
         PairingStatus pairingStatus = attemptToPair(new PairingListenerImpl());
+        metrics.setPairingMillis(SystemClock.uptimeMillis() - start);
         if (pairingStatus != PairingStatus.PAIRING_SUCCESS) {
             Log.i(LOG_TAG, "Pairing failed");
             return false;
         }
+        metrics.enterState(ConnectionMetrics.State.CONNECTING);
         for (int connectionAttempt = 0; connectionAttempt < MAX_CONNECTION_ATTEMPTS;) {
             /*
              * wait on every next iteration; placed here so we don't wait after
@@ -214,8 +258,10 @@ public class ConnectingTask extends Thread {
             if (isCancelled) {
                 return false;
             }
+            start = SystemClock.uptimeMillis();
             if (attemptToConnect() == ConnectionStatus.SUCCESS) {
-                Log.i(LOG_TAG, "Connected to " + target.toString());
+                metrics.setHandshakeMillis(SystemClock.uptimeMillis() - start);
+                Log.i(LOG_TAG, "Connected to " + target.toString() + " " + timings);
                 return true;
             }
             connectionAttempt++;
@@ -224,6 +270,37 @@ public class ConnectingTask extends Thread {
         return false;
     }
 
+    /**
+     * Uses the socket connected ahead of time, if any. A device that accepts
+     * the TLS handshake already trusts this client, so pairing is skipped.
+     * 
+     * @return true, if the socket is connected.
+     */
+    private boolean takePrewarmedSocket() {
+        final Future<SSLSocket> future = prewarmedSocket;
+        prewarmedSocket = null;
+        if (future == null) {
+            return false;
+        }
+        try {
+            final SSLSocket socket = future.get();
+            if (SystemClock.uptimeMillis() - prewarmedSince > PREWARMED_SOCKET_TTL_MS) {
+                // The server may have dropped a connection idle for so long.
+                socket.close();
+                return false;
+            }
+            sslsock = socket;
+            return true;
+        } catch (ExecutionException e) {
+            Log.d(LOG_TAG, "Connection ahead of time failed", e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "(IOE) Failed to close socket", e);
+        }
+        return false;
+    }
+
     /**
      * Attempts to establish pairing with the server.
      * 
@@ -233,7 +310,8 @@ public class ConnectingTask extends Thread {
     public PairingStatus attemptToPair(final PairingListenerImpl listener) {
         PairingStatus result = PairingStatus.FAILED_CONNECTION;
         SSLSocketFactory socketFactory;
-        SSLSocket socket;
+        Socket s = null;
+        SSLSocket socket = null;
         PairingContext context;
 
         try {
@@ -243,12 +321,15 @@ public class ConnectingTask extends Thread {
                 throw new IllegalStateException("Cannot build socket factory", e);
             }
 
-            Socket s =
-                    new java.net.Socket(target.getAddress().getHostAddress(), target.getPort() + 1);
-            socket = (SSLSocket) socketFactory.createSocket(
-                    s, target.getAddress().getHostAddress(), target.getPort() + 1, true);
+            String host = target.getAddress().getHostAddress();
+            long mark = System.nanoTime();
+            s = connectSocket(target.getAddress(), target.getPort() + 1);
+            mark = timings.record(Phase.PAIRING_CONNECT, mark);
+            socket = (SSLSocket) socketFactory.createSocket(s, host, target.getPort() + 1, true);
 
+            // Reading the certificates completes the handshake.
             context = PairingContext.fromSslSocket(socket, false);
+            timings.record(Phase.PAIRING_HANDSHAKE, mark);
 
             PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS.getWireInterface(context);
             ClientPairingSession pairingSession =
@@ -260,6 +341,7 @@ public class ConnectingTask extends Thread {
             pairingSession.addOutputEncoding(hexEnc);
 
             boolean ret = pairingSession.doPair(listener);
+            timings.recordOnce(Phase.PAIRING_CHECK);
             if (ret) {
                 keyStore.storeCertificate(context.getServerCertificate());
                 result = PairingStatus.PAIRING_SUCCESS;
@@ -279,20 +361,62 @@ public class ConnectingTask extends Thread {
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to connect", e);
             result = PairingStatus.FAILED_CONNECTION;
+        } finally {
+            // Closing the TLS socket also closes the one it wraps.
+            closeQuietly(socket != null ? socket : s);
         }
         return result;
     }
 
+    /**
+     * Opens a TCP connection, giving up after {@link #CONNECT_TIMEOUT_MS}
+     * rather than the minutes the system takes when a TV is turned off.
+     * 
+     * @param address the address of the TV.
+     * @param port the port.
+     * @return the connected socket.
+     */
+    private static Socket connectSocket(InetAddress address, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "(IOE) Failed to close socket", e);
+        }
+    }
+
+    /**
+     * Starts connecting in the background.
+     */
+    public synchronized void start() {
+        running = EventLoop.getWorkers().submit(this);
+    }
+
     /**
      * Cancel current connection.
      */
     public void cancel() {
+        isCancelled = true;
         disconnect();
-        // Interrupt thread in case it's pending on pairing code.
+        // Interrupt worker in case it's pending on pairing code.
         synchronized (this) {
-            this.interrupt();
+            if (running != null) {
+                running.cancel(true);
+            }
         }
-        isCancelled = true;
     }
 
     /**
@@ -304,6 +428,66 @@ public class ConnectingTask extends Thread {
         this.listener = listener;
     }
 
+    /**
+     * Hands over a socket to the target device, connected ahead of time.
+     * Must be called before the task is started.
+     * 
+     * @param socket future of the socket, as returned by
+     *            {@link #openSocket(TvDevice, KeyStoreManager)}.
+     * @param since time the connection was started, in
+     *            {@link SystemClock#uptimeMillis()} units.
+     */
+    public void setPrewarmedSocket(Future<SSLSocket> socket, long since) {
+        prewarmedSocket = socket;
+        prewarmedSince = since;
+    }
+
+    /**
+     * Sets the recorder of the messages exchanged with the TV. Must be called
+     * before the task is started.
+     * 
+     * @param recorder the recorder, or {@code null} not to record.
+     */
+    public void setSessionRecorder(SessionRecorder recorder) {
+        anymoteProxy.setSessionRecorder(recorder);
+    }
+
+    /**
+     * Returns the sender of the connection.
+     * 
+     * @return the sender.
+     */
+    public AnymoteSender getAnymoteSender() {
+        return anymoteProxy;
+    }
+
+    /**
+     * Returns the timings of the phases of the connection.
+     * 
+     * @return the timings.
+     */
+    public HandshakeTimings getHandshakeTimings() {
+        return timings;
+    }
+
+    /**
+     * Returns the health metrics of the connection.
+     * 
+     * @return the metrics.
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a snapshot of the health metrics of the connection.
+     * 
+     * @return the snapshot.
+     */
+    public ConnectionMetrics.Snapshot getConnectionMetrics() {
+        return metrics.snapshot(anymoteProxy.getQueueDepth());
+    }
+
     /**
      * Set secret (PIN, passphrase) which is required for pairing devices. This
      * method is called when the user enters secret code in the
@@ -324,14 +508,33 @@ public class ConnectingTask extends Thread {
      */
     public void onConnectionDisconnected() {
 
+        metrics.enterState(ConnectionMetrics.State.DISCONNECTED);
         disconnect();
 
         if (listener != null) {
-            listener.onConnectionDisconnected();
+            listener.onConnectionDisconnected(anymoteProxy);
         }
 
     }
 
+    /**
+     * Existing connection is suspended.
+     */
+    public void onConnectionSuspended() {
+        metrics.enterState(ConnectionMetrics.State.SUSPENDED);
+        anymoteProxy.suspend();
+    }
+
+    /**
+     * Suspended connection was checked and resumed.
+     */
+    public void onConnectionResumed() {
+        metrics.enterState(ConnectionMetrics.State.CONNECTED);
+        if (listener != null) {
+            listener.onConnectionResumed();
+        }
+    }
+
     /**
      * Attempts to establish connection the Anymote server.
      * 
@@ -341,15 +544,7 @@ public class ConnectingTask extends Thread {
         ConnectionStatus status = ConnectionStatus.ERROR;
 
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(keyStore.getKeyManagers(), keyStore.getTrustManagers(), null);
-            SSLSocketFactory factory = sslContext.getSocketFactory();
-            sslsock = (SSLSocket) factory.createSocket(
-                    target.getAddress().getHostAddress(), target.getPort());
-            sslsock.setUseClientMode(true);
-            sslsock.setKeepAlive(true);
-            sslsock.setTcpNoDelay(true);
-            sslsock.startHandshake();
+            sslsock = openSocket(target, keyStore, timings);
 
             if (sslsock.isConnected()) {
                 status = ConnectionStatus.SUCCESS;
@@ -365,7 +560,7 @@ public class ConnectingTask extends Thread {
             Log.e(LOG_TAG, "(IOE) Could not create socket to " + target.getName(), e);
             status = ConnectionStatus.ERROR;
         } catch (IOException e) {
-            if (e.getMessage().startsWith("SSL handshake")) {
+            if (e.getMessage() != null && e.getMessage().startsWith("SSL handshake")) {
                 Log.e(LOG_TAG, "(IOE) SSL handshake failed while connecting to " + target.getName(),
                         e);
                 status = ConnectionStatus.NEEDS_PAIRING;
@@ -388,11 +583,65 @@ public class ConnectingTask extends Thread {
         return status;
     }
 
+    /**
+     * Opens a TLS connection to the Anymote server of a device.
+     * 
+     * @param device the device.
+     * @param keyStore key store holding the client and server certificates.
+     * @return the socket, once the handshake is complete.
+     */
+    public static SSLSocket openSocket(TvDevice device, KeyStoreManager keyStore)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        return openSocket(device, keyStore, null);
+    }
+
+    /**
+     * Opens a TLS connection to the Anymote server of a device, timing the
+     * TCP connection and the handshake.
+     * 
+     * @param device the device.
+     * @param keyStore key store holding the client and server certificates.
+     * @param timings records the phases, if not {@code null}.
+     * @return the socket, once the handshake is complete.
+     */
+    private static SSLSocket openSocket(TvDevice device, KeyStoreManager keyStore,
+            HandshakeTimings timings)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyStore.getKeyManagers(), keyStore.getTrustManagers(), null);
+        SSLSocketFactory factory = sslContext.getSocketFactory();
+        long mark = System.nanoTime();
+        Socket plainSocket = connectSocket(device.getAddress(), device.getPort());
+        if (timings != null) {
+            mark = timings.record(Phase.ANYMOTE_CONNECT, mark);
+        }
+        SSLSocket socket = null;
+        try {
+            plainSocket.setKeepAlive(true);
+            plainSocket.setTcpNoDelay(true);
+            socket = (SSLSocket) factory.createSocket(
+                    plainSocket, device.getAddress().getHostAddress(), device.getPort(), true);
+            socket.setUseClientMode(true);
+            // A TV that accepted the connection may still never answer.
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+            if (timings != null) {
+                timings.record(Phase.ANYMOTE_HANDSHAKE, mark);
+            }
+        } catch (IOException e) {
+            // Closing the TLS socket also closes the one it wraps.
+            closeQuietly(socket != null ? socket : plainSocket);
+            throw e;
+        }
+        return socket;
+    }
+
     /**
      * Disconnect from the Anymote server.
      */
     public void disconnect() {
-        new Thread(new Runnable() {
+        EventLoop.getWorkers().execute(new Runnable() {
                 @Override
             public void run() {
                 if (anymoteProxy != null) {
@@ -408,7 +657,7 @@ public class ConnectingTask extends Thread {
                 sslsock = null;
             }
 
-        }).start();
+        });
     }
 
     /**
@@ -445,7 +694,7 @@ public class ConnectingTask extends Thread {
 
         public void onPerformInputDeviceRole(PairingSession session) {
 
-            Looper.prepare();
+            timings.recordOnce(Phase.PAIRING_EXCHANGE);
             // this listener is implemented by the main Activity which
             // shows Pairing PIN dialog to the user to enter secret code.
             listener.onSecretRequired(this);
@@ -457,6 +706,7 @@ public class ConnectingTask extends Thread {
                     // secret is already null.
                 }
             }
+            timings.recordOnce(Phase.PIN_WAIT);
             // check if the secret was entered correctly.
             Log.d(LOG_TAG, "Got: " + secret);
             if (secret != null && secret.length() > 0) {
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.os.SystemClock;
+
+import com.example.google.tv.anymotelibrary.util.LatencyHistogram;
+import com.example.google.tv.anymotelibrary.util.StripedCounter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health metrics of a connection to an Anymote server: what is sent, how long
+ * messages wait in the send queue, ping round trips, and how long the
+ * connection spent in each state.
+ * <p>
+ * Recording only uses lock-free counters, so it does not slow down the send
+ * path. Counts of the last minute are kept in a ring of time slots; a slot is
+ * recycled without locking, so they are approximate while the slot turns
+ * over.
+ */
+public final class ConnectionMetrics {
+
+    /**
+     * Types of messages sent to the TV.
+     */
+    public enum MessageType {
+        KEY, MOUSE_MOVE, MOUSE_WHEEL, DATA, FLING, CONNECT, PING
+    }
+
+    /**
+     * States of a connection.
+     */
+    public enum State {
+        PAIRING, CONNECTING, CONNECTED, SUSPENDED, DISCONNECTED
+    }
+
+    /**
+     * Duration and number of the slots of the rolling window.
+     */
+    private static final long SLOT_MS = 5 * 1000;
+    private static final int SLOT_COUNT = 12;
+
+    /**
+     * One slot of the rolling window.
+     */
+    private static final class Slot {
+        final AtomicLong period = new AtomicLong(-1);
+        final StripedCounter messages = new StripedCounter();
+        final StripedCounter bytes = new StripedCounter();
+        final LatencyHistogram queueLatency = new LatencyHistogram();
+    }
+
+    private final StripedCounter[] messages = new StripedCounter[MessageType.values().length];
+    private final StripedCounter[] bytes = new StripedCounter[MessageType.values().length];
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram pingRoundTrip = new LatencyHistogram();
+    private final Slot[] slots = new Slot[SLOT_COUNT];
+
+    /**
+     * Type of the message being written, set on the sender thread.
+     */
+    private MessageType writingType = MessageType.PING;
+
+    private volatile long lastQueueLatencyMicros;
+    private volatile long lastPingRoundTripMicros = -1;
+    private volatile long pingWriteNanos;
+    private volatile long pairingMillis = -1;
+    private volatile long handshakeMillis = -1;
+    private volatile int reconnectCount;
+    private volatile long launchTime = -1;
+    private volatile long firstKeyMillis = -1;
+
+    /**
+     * Time spent in each state, guarded by {@code stateMillis}.
+     */
+    private final long[] stateMillis = new long[State.values().length];
+    private State state = State.DISCONNECTED;
+    private long stateSince = SystemClock.uptimeMillis();
+
+    /**
+     * Constructor.
+     */
+    public ConnectionMetrics() {
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new StripedCounter();
+            bytes[i] = new StripedCounter();
+        }
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Wraps the socket output stream to count the bytes sent, by message
+     * type.
+     *
+     * @param out socket output stream.
+     * @return stream that counts what is written to {@code out}.
+     */
+    public OutputStream countOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                countBytes(1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                out.write(buffer, offset, count);
+                countBytes(count);
+            }
+        };
+    }
+
+    private void countBytes(int count) {
+        bytes[writingType.ordinal()].add(count);
+        currentSlot().bytes.add(count);
+    }
+
+    /**
+     * Records that messages taken from the send queue are about to be
+     * written. Must be called on the thread that writes to the socket.
+     *
+     * @param type type of the messages.
+     * @param count number of messages.
+     * @param dueNanos time the messages were queued, plus the delay they were
+     *            queued with, in {@link System#nanoTime()} units.
+     */
+    public void onWrite(MessageType type, int count, long dueNanos) {
+        writingType = type;
+        long latencyMicros = Math.max(0, System.nanoTime() - dueNanos) / 1000;
+        lastQueueLatencyMicros = latencyMicros;
+        messages[type.ordinal()].add(count);
+        queueLatency.record(latencyMicros);
+        Slot slot = currentSlot();
+        slot.messages.add(count);
+        slot.queueLatency.record(latencyMicros);
+        if (type == MessageType.PING) {
+            pingWriteNanos = System.nanoTime();
+        } else if (type == MessageType.KEY && firstKeyMillis < 0 && launchTime >= 0) {
+            firstKeyMillis = SystemClock.uptimeMillis() - launchTime;
+        }
+    }
+
+    /**
+     * Records the acknowledgment of the last ping. Acknowledgments of other
+     * requests are ignored.
+     */
+    public void onAck() {
+        long writeNanos = pingWriteNanos;
+        if (writeNanos != 0) {
+            pingWriteNanos = 0;
+            long roundTripMicros = (System.nanoTime() - writeNanos) / 1000;
+            lastPingRoundTripMicros = roundTripMicros;
+            pingRoundTrip.record(roundTripMicros);
+        }
+    }
+
+    /**
+     * Records a change of state of the connection.
+     *
+     * @param newState the new state.
+     */
+    public void enterState(State newState) {
+        synchronized (stateMillis) {
+            long now = SystemClock.uptimeMillis();
+            stateMillis[state.ordinal()] += now - stateSince;
+            state = newState;
+            stateSince = now;
+        }
+    }
+
+    /**
+     * Records the duration of pairing.
+     *
+     * @param millis the duration in milliseconds.
+     */
+    public void setPairingMillis(long millis) {
+        pairingMillis = millis;
+    }
+
+    /**
+     * Records the duration of the connection and TLS handshake.
+     *
+     * @param millis the duration in milliseconds.
+     */
+    public void setHandshakeMillis(long millis) {
+        handshakeMillis = millis;
+    }
+
+    /**
+     * Sets the time the application was launched, to measure how long it
+     * takes until the first key is sent.
+     *
+     * @param uptime the launch time, in {@link SystemClock#uptimeMillis()}
+     *            units.
+     */
+    public void setLaunchTime(long uptime) {
+        launchTime = uptime;
+    }
+
+    /**
+     * Sets the number of connections to the same device that preceded this
+     * one.
+     *
+     * @param count the number of reconnections.
+     */
+    public void setReconnectCount(int count) {
+        reconnectCount = count;
+    }
+
+    /**
+     * Returns the slot of the current time, recycling it if it holds counts
+     * of a previous turn of the ring.
+     */
+    private Slot currentSlot() {
+        long period = SystemClock.uptimeMillis() / SLOT_MS;
+        Slot slot = slots[(int) (period % SLOT_COUNT)];
+        long slotPeriod = slot.period.get();
+        if (slotPeriod != period && slot.period.compareAndSet(slotPeriod, period)) {
+            slot.messages.reset();
+            slot.bytes.reset();
+            slot.queueLatency.reset();
+        }
+        return slot;
+    }
+
+    /**
+     * Takes a snapshot of the metrics.
+     *
+     * @param queueDepth current depth of the send queue.
+     * @return the snapshot.
+     */
+    public Snapshot snapshot(int queueDepth) {
+        return new Snapshot(this, queueDepth);
+    }
+
+    /**
+     * Immutable copy of the metrics at a point in time.
+     */
+    public static final class Snapshot {
+        private final long[] messages;
+        private final long[] bytes;
+        private final int queueDepth;
+        private final long lastQueueLatencyMicros;
+        private final long queueLatencyP99Micros;
+        private final long lastPingRoundTripMicros;
+        private final long pingRoundTripP99Micros;
+        private final long lastMinuteMessages;
+        private final long lastMinuteBytes;
+        private final long lastMinuteQueueLatencyP99Micros;
+        private final int reconnectCount;
+        private final State state;
+        private final long[] stateMillis;
+        private final long pairingMillis;
+        private final long handshakeMillis;
+        private final long firstKeyMillis;
+
+        Snapshot(ConnectionMetrics metrics, int queueDepth) {
+            int typeCount = MessageType.values().length;
+            messages = new long[typeCount];
+            bytes = new long[typeCount];
+            for (int i = 0; i < typeCount; i++) {
+                messages[i] = metrics.messages[i].sum();
+                bytes[i] = metrics.bytes[i].sum();
+            }
+            this.queueDepth = queueDepth;
+            lastQueueLatencyMicros = metrics.lastQueueLatencyMicros;
+            queueLatencyP99Micros = metrics.queueLatency.getPercentile(99);
+            lastPingRoundTripMicros = metrics.lastPingRoundTripMicros;
+            pingRoundTripP99Micros = metrics.pingRoundTrip.getPercentile(99);
+
+            long firstPeriod = SystemClock.uptimeMillis() / SLOT_MS - SLOT_COUNT + 1;
+            long windowMessages = 0;
+            long windowBytes = 0;
+            long[] windowLatency = new long[LatencyHistogram.getBucketCount()];
+            for (Slot slot : metrics.slots) {
+                if (slot.period.get() >= firstPeriod) {
+                    windowMessages += slot.messages.sum();
+                    windowBytes += slot.bytes.sum();
+                    slot.queueLatency.addTo(windowLatency);
+                }
+            }
+            lastMinuteMessages = windowMessages;
+            lastMinuteBytes = windowBytes;
+            lastMinuteQueueLatencyP99Micros = LatencyHistogram.getPercentile(windowLatency, 99);
+
+            reconnectCount = metrics.reconnectCount;
+            pairingMillis = metrics.pairingMillis;
+            handshakeMillis = metrics.handshakeMillis;
+            firstKeyMillis = metrics.firstKeyMillis;
+            synchronized (metrics.stateMillis) {
+                state = metrics.state;
+                stateMillis = metrics.stateMillis.clone();
+                stateMillis[state.ordinal()] += SystemClock.uptimeMillis() - metrics.stateSince;
+            }
+        }
+
+        /**
+         * Returns the number of messages sent of a type.
+         */
+        public long getMessagesSent(MessageType type) {
+            return messages[type.ordinal()];
+        }
+
+        /**
+         * Returns the number of bytes sent for messages of a type.
+         */
+        public long getBytesSent(MessageType type) {
+            return bytes[type.ordinal()];
+        }
+
+        /**
+         * Returns the number of messages waiting in the send queue.
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Returns the time the last message waited in the send queue, in
+         * microseconds.
+         */
+        public long getLastQueueLatencyMicros() {
+            return lastQueueLatencyMicros;
+        }
+
+        /**
+         * Returns the 99th percentile of the time messages waited in the send
+         * queue, in microseconds.
+         */
+        public long getQueueLatencyP99Micros() {
+            return queueLatencyP99Micros;
+        }
+
+        /**
+         * Returns the round trip time of the last acknowledged ping, in
+         * microseconds, or {@code -1} if none was acknowledged.
+         */
+        public long getLastPingRoundTripMicros() {
+            return lastPingRoundTripMicros;
+        }
+
+        /**
+         * Returns the 99th percentile of ping round trip times, in
+         * microseconds.
+         */
+        public long getPingRoundTripP99Micros() {
+            return pingRoundTripP99Micros;
+        }
+
+        /**
+         * Returns the number of messages sent during the last minute.
+         */
+        public long getLastMinuteMessages() {
+            return lastMinuteMessages;
+        }
+
+        /**
+         * Returns the number of bytes sent during the last minute.
+         */
+        public long getLastMinuteBytes() {
+            return lastMinuteBytes;
+        }
+
+        /**
+         * Returns the 99th percentile of the time messages waited in the send
+         * queue during the last minute, in microseconds.
+         */
+        public long getLastMinuteQueueLatencyP99Micros() {
+            return lastMinuteQueueLatencyP99Micros;
+        }
+
+        /**
+         * Returns the number of connections to the same device that preceded
+         * this one.
+         */
+        public int getReconnectCount() {
+            return reconnectCount;
+        }
+
+        /**
+         * Returns the state of the connection.
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Returns the time spent in a state, in milliseconds.
+         */
+        public long getStateMillis(State state) {
+            return stateMillis[state.ordinal()];
+        }
+
+        /**
+         * Returns the duration of pairing in milliseconds, or {@code -1} if
+         * unknown.
+         */
+        public long getPairingMillis() {
+            return pairingMillis;
+        }
+
+        /**
+         * Returns the duration of the connection and TLS handshake in
+         * milliseconds, or {@code -1} if unknown.
+         */
+        public long getHandshakeMillis() {
+            return handshakeMillis;
+        }
+
+        /**
+         * Returns the time from the launch of the application until the first
+         * key was sent, in milliseconds, or {@code -1} if unknown.
+         */
+        public long getFirstKeyMillis() {
+            return firstKeyMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("state=").append(state);
+            builder.append(" queue=").append(queueDepth);
+            builder.append(" queueLatency=").append(lastQueueLatencyMicros / 1000)
+                    .append("ms p99=").append(queueLatencyP99Micros / 1000).append("ms");
+            builder.append(" ping=").append(lastPingRoundTripMicros / 1000)
+                    .append("ms p99=").append(pingRoundTripP99Micros / 1000).append("ms");
+            builder.append(" lastMinute=").append(lastMinuteMessages).append("msg/")
+                    .append(lastMinuteBytes).append("B");
+            builder.append(" reconnects=").append(reconnectCount);
+            builder.append(" pairing=").append(pairingMillis).append("ms");
+            builder.append(" handshake=").append(handshakeMillis).append("ms");
+            builder.append(" firstKey=").append(firstKeyMillis).append("ms");
+            for (MessageType type : MessageType.values()) {
+                builder.append(' ').append(type).append('=').append(messages[type.ordinal()])
+                        .append('/').append(bytes[type.ordinal()]).append('B');
+            }
+            return builder.toString();
+        }
+    }
+}
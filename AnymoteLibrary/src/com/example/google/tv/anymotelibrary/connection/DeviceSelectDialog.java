@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.HapticFeedbackConstants;
 import android.view.View;
@@ -38,10 +39,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.google.tv.anymotelibrary.R;
+import com.example.google.tv.anymotelibrary.util.StagedSortedList;
 
 import java.net.Inet4Address;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -52,7 +52,8 @@ import java.util.List;
 public class DeviceSelectDialog extends Dialog {
     private DeviceListAdapter mDataAdapter;
     private DeviceSelectListener mListener;
-    private TvDiscoveryService mTvDiscoveryService;
+    private DiscoverySession mDiscoverySession;
+    private PresenceMonitor mPresenceMonitor;
     private boolean mInitialized;
     private AsyncTask<Integer, Integer, List<TvDevice>> mDiscoveryTask;
     private ProgressBar progressBar;
@@ -89,12 +90,14 @@ public class DeviceSelectDialog extends Dialog {
     @Override
     protected void onStart() {
         super.onStart();
+        showPresence(true);
         startDiscovery();
     }
 
     @Override
     protected void onStop() {
         stopDiscovery();
+        showPresence(false);
         super.onStop();
     }
 
@@ -162,6 +165,7 @@ public class DeviceSelectDialog extends Dialog {
         private TvDevice listEntry = null;
         private TextView tvName = null;
         private TextView tvTargetAddr = null;
+        private ImageView image = null;
 
         public ListEntryView(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -178,6 +182,7 @@ public class DeviceSelectDialog extends Dialog {
             super.onFinishInflate();
             tvName = (TextView) findViewById(R.id.device_select_item_name);
             tvTargetAddr = (TextView) findViewById(R.id.device_select_item_address);
+            image = (ImageView) findViewById(R.id.device_select_item_image);
         }
 
         private void updateContents() {
@@ -207,13 +212,34 @@ public class DeviceSelectDialog extends Dialog {
 
     /**
      * Internal listview adapter.
+     * <p>
+     * Devices are kept sorted as they are added, and the list view is
+     * notified at most once per frame however many devices are discovered.
+     * Changes are staged until then: the list view must not see the devices
+     * change before it is notified.
      */
     private class DeviceListAdapter extends BaseAdapter {
-        private final List<TvDevice> trackedDevices;
+        /** Delay between two notifications of the list view, one frame */
+        private static final long NOTIFY_DELAY_MS = 16;
+
+        private static final int VIEW_TYPE_HEADER = 0;
+        private static final int VIEW_TYPE_DEVICE = 1;
+
+        private final StagedSortedList<TvDevice> trackedDevices;
         private TvDevice mCurrentDevice;
+        private final Handler mHandler = new Handler();
+        private boolean mNotifyPending;
+
+        private final Runnable mNotifier = new Runnable() {
+            public void run() {
+                mNotifyPending = false;
+                trackedDevices.applyChanges();
+                notifyDataSetChanged();
+            }
+        };
 
         public DeviceListAdapter() {
-            trackedDevices = new ArrayList<TvDevice>();
+            trackedDevices = new StagedSortedList<TvDevice>();
             setRecentDevices(null);
         }
 
@@ -244,17 +270,44 @@ public class DeviceSelectDialog extends Dialog {
             return position;
         }
 
-        public boolean add(TvDevice device) {
-            if (!trackedDevices.contains(device)) {
-                trackedDevices.add(device);
-                Collections.sort(trackedDevices);
+        @Override
+        public int getViewTypeCount() {
+            return 2;
+        }
 
-                notifyDataSetChanged();
+        @Override
+        public int getItemViewType(int position) {
+            return position == 0 ? VIEW_TYPE_HEADER : VIEW_TYPE_DEVICE;
+        }
+
+        public boolean add(TvDevice device) {
+            if (trackedDevices.add(device)) {
+                scheduleNotify();
                 return true;
             }
             return false;
         }
 
+        /**
+         * Replaces the discovered devices with the results of a scan, so that
+         * devices that went away are dropped on a rescan.
+         */
+        public void setDevices(List<TvDevice> devices) {
+            trackedDevices.replaceAll(devices);
+            scheduleNotify();
+        }
+
+        /**
+         * Notifies the list view of changes on the next frame, once for all
+         * the changes made until then.
+         */
+        private void scheduleNotify() {
+            if (!mNotifyPending) {
+                mNotifyPending = true;
+                mHandler.postDelayed(mNotifier, NOTIFY_DELAY_MS);
+            }
+        }
+
         public void setRecentDevices(TvDevice[] devices) {
 
             notifyDataSetChanged();
@@ -305,8 +358,11 @@ public class DeviceSelectDialog extends Dialog {
          * @return separator view.
          */
         private View getHeaderView(int resource, View convertView) {
-            View view = getLayoutInflater().inflate(R.layout.device_select_item_separator_layout,
-                    null);
+            View view = convertView;
+            if (view == null) {
+                view = getLayoutInflater().inflate(R.layout.device_select_item_separator_layout,
+                        null);
+            }
             TextView text = (TextView) view.findViewById(R.id.header_text);
             text.setText(resource);
             return view;
@@ -331,7 +387,7 @@ public class DeviceSelectDialog extends Dialog {
                 itemView = (ListEntryView) convertView;
             }
 
-            image = (ImageView) itemView.findViewById(R.id.device_select_item_image);
+            image = itemView.image;
             if (image != null) {
                 if (device.equals(mCurrentDevice)) {
                     image.setImageResource(android.R.drawable.ic_menu_upload_you_tube);
@@ -398,12 +454,13 @@ public class DeviceSelectDialog extends Dialog {
     }
 
     private void startDiscovery() {
-        if (!mInitialized || (mTvDiscoveryService == null) || (mDiscoveryTask != null)) {
+        if (!mInitialized || (mDiscoverySession == null) || (mDiscoveryTask != null)) {
             return;
         }
 
-        // As TvDiscovery.discoverTvs method is blocking, launch an AsyncTask
+        // As DiscoverySession.scan method is blocking, launch an AsyncTask
         // to get a list of TVs.
+        final DiscoverySession session = mDiscoverySession;
         mDiscoveryTask = new AsyncTask<Integer, Integer, List<TvDevice>>() {
 
             /**
@@ -411,7 +468,7 @@ public class DeviceSelectDialog extends Dialog {
              */
                 @Override
             protected List<TvDevice> doInBackground(Integer... params) {
-                return mTvDiscoveryService.discoverTvs();
+                return session.scan();
             }
 
             /**
@@ -423,9 +480,7 @@ public class DeviceSelectDialog extends Dialog {
 
                 progressBar.setVisibility(View.INVISIBLE);
                 if (tvs != null) {
-                    for (TvDevice tv : tvs) {
-                        mDataAdapter.add(tv);
-                    }
+                    mDataAdapter.setDevices(tvs);
                 } else {
                     // For the time being, assume that null result means
                     // wifi connection error, so show wifi config dialog.
@@ -437,12 +492,33 @@ public class DeviceSelectDialog extends Dialog {
         mDiscoveryTask.execute((Integer) null);
     }
 
+    /**
+     * Lists the TVs known to be online until a scan completes, and has them
+     * monitored more often while the dialog is shown.
+     * 
+     * @param shown whether the dialog is shown.
+     */
+    private void showPresence(boolean shown) {
+        if (mPresenceMonitor == null) {
+            return;
+        }
+        mPresenceMonitor.setPickerShown(shown);
+        if (shown && mDataAdapter != null) {
+            for (TvDevice device : mPresenceMonitor.getOnlineDevices()) {
+                mDataAdapter.add(device);
+            }
+        }
+    }
+
     private void stopDiscovery() {
         if (mDiscoveryTask == null) {
             return;
         }
         mDiscoveryTask.cancel(true);
         mDiscoveryTask = null;
+        if (mDiscoverySession != null) {
+            mDiscoverySession.cancel();
+        }
     }
 
     /**
@@ -530,7 +606,18 @@ public class DeviceSelectDialog extends Dialog {
      * @param discovery service used to find neighboring TVs.
      */
     public void setTvDiscovery(TvDiscoveryService discovery) {
-        mTvDiscoveryService = discovery;
+        if (mDiscoverySession != null) {
+            mDiscoverySession.cancel();
+        }
+        mDiscoverySession = discovery != null ? discovery.newSession() : null;
+        boolean shown = isShowing();
+        if (shown) {
+            showPresence(false);
+        }
+        mPresenceMonitor = discovery != null ? discovery.getPresenceMonitor() : null;
+        if (shown) {
+            showPresence(true);
+        }
         startDiscovery();
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+/**
+ * Messages of the broadcast discovery protocol, shared by
+ * {@link BroadcastDiscoveryClient} and {@link PresenceMonitor}.
+ * <p>
+ * A probe is {@code "discover <service> <reply port>"}; a TV answers with
+ * {@code "<service> <name> <port>"}. This class does not depend on Android so
+ * that the parsing can be benchmarked on a plain JVM.
+ */
+final class DiscoveryProtocol {
+
+    /**
+     * UDP port to send probe messages to.
+     */
+    static final int BROADCAST_SERVER_PORT = 9101;
+
+    /**
+     * Returned by {@link #parseResponse} for a response that is malformed.
+     */
+    static final int MALFORMED = -1;
+
+    /**
+     * Returned by {@link #parseResponse} for a response for another service.
+     */
+    static final int OTHER_SERVICE = -2;
+
+    /**
+     * Command name for a discovery request.
+     */
+    private static final String COMMAND_DISCOVER = "discover";
+
+    private DiscoveryProtocol() {
+    }
+
+    /**
+     * Constructs the payload of a probe packet.
+     *
+     * @param serviceName the service name to discover
+     * @param responsePort the udp port number for replies
+     * @return the payload
+     */
+    static byte[] makeRequestMessage(String serviceName, int responsePort) {
+        String message = COMMAND_DISCOVER + " " + serviceName + " " + responsePort + "\n";
+        return message.getBytes();
+    }
+
+    /**
+     * Parses the payload of a response packet.
+     *
+     * @param serviceName the service name that was probed for
+     * @param data the payload
+     * @param length the length of the payload
+     * @param tokens receives the tokens of the response, with the name of the
+     *            TV at index 1; must hold 3 tokens
+     * @return the port of the service, {@link #MALFORMED} or
+     *         {@link #OTHER_SERVICE}
+     */
+    static int parseResponse(String serviceName, byte[] data, int length, String[] tokens) {
+        String response = new String(data, 0, length);
+        if (splitTokens(response, tokens) != 3) {
+            return MALFORMED;
+        }
+        if (!serviceName.equals(tokens[0])) {
+            return OTHER_SERVICE;
+        }
+        try {
+            int port = Integer.parseInt(tokens[2]);
+            return port >= 0 ? port : MALFORMED;
+        } catch (NumberFormatException e) {
+            return MALFORMED;
+        }
+    }
+
+    /**
+     * Splits a string on whitespace without compiling a regular expression for
+     * every packet.
+     *
+     * @param string the string to split
+     * @param tokens receives the first tokens, as many as it can hold
+     * @return the total number of tokens in the string
+     */
+    static int splitTokens(String string, String[] tokens) {
+        int count = 0;
+        int length = string.length();
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(string.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return count;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(string.charAt(i))) {
+                i++;
+            }
+            if (count < tokens.length) {
+                tokens[count] = string.substring(start, i);
+            }
+            count++;
+        }
+    }
+}
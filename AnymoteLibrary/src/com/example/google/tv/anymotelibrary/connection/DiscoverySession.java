@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A scan for TVs with its own results, created by
+ * {@link TvDiscoveryService#newSession()}.
+ * <p>
+ * Sessions running at the same time share the socket that probes the network,
+ * so a session is cheap and can be started again to rescan. Each scan starts
+ * from an empty result set.
+ */
+public final class DiscoverySession {
+
+    private static final String LOG_TAG = "DiscoverySession";
+
+    private final TvDiscoveryService discovery;
+
+    /** Devices found by the current or last scan */
+    private final List<TvDevice> devices = new ArrayList<TvDevice>();
+
+    /** Released when the current scan completes */
+    private CountDownLatch done = new CountDownLatch(0);
+
+    private boolean scanning;
+
+    /** Whether the last scan failed because wifi is not available */
+    private boolean unavailable;
+
+    DiscoverySession(TvDiscoveryService discovery) {
+        this.discovery = discovery;
+    }
+
+    /**
+     * Starts a scan. If the session is already scanning, the scan goes on with
+     * a new burst of probes and a full timeout.
+     */
+    public void start() {
+        synchronized (this) {
+            if (!scanning) {
+                scanning = true;
+                unavailable = false;
+                devices.clear();
+                done = new CountDownLatch(1);
+            }
+        }
+        discovery.startSession(this);
+    }
+
+    /**
+     * Stops the scan, keeping the devices found so far.
+     */
+    public void cancel() {
+        discovery.finishSession(this);
+    }
+
+    /**
+     * Waits for the current scan to complete.
+     *
+     * @return the devices found, or {@code null} if wifi is not available.
+     */
+    public List<TvDevice> await() {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = done;
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while scanning for tvs");
+            Thread.currentThread().interrupt();
+        }
+        return getDevices();
+    }
+
+    /**
+     * Starts a scan and waits for it to complete.
+     *
+     * @return the devices found, or {@code null} if wifi is not available.
+     */
+    public List<TvDevice> scan() {
+        start();
+        return await();
+    }
+
+    /**
+     * Returns the devices found so far by the current or last scan.
+     *
+     * @return the devices, or {@code null} if wifi is not available.
+     */
+    public synchronized List<TvDevice> getDevices() {
+        return unavailable ? null : new ArrayList<TvDevice>(devices);
+    }
+
+    /**
+     * Returns whether a scan is running.
+     */
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    synchronized void onDeviceFound(TvDevice device) {
+        if (scanning && !devices.contains(device)) {
+            devices.add(device);
+        }
+    }
+
+    synchronized void onScanComplete(boolean available) {
+        if (scanning) {
+            scanning = false;
+            unavailable = !available;
+            done.countDown();
+        }
+    }
+}
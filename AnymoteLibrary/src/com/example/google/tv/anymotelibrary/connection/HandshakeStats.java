@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import com.example.google.tv.anymotelibrary.connection.HandshakeTimings.Phase;
+import com.example.google.tv.anymotelibrary.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Handshake phase durations of all the connection attempts, aggregated in one
+ * histogram per phase, and the timings of the latest attempts.
+ */
+public final class HandshakeStats {
+
+    /** Number of attempts kept */
+    private static final int RECENT_ATTEMPTS = 16;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    private final LinkedList<HandshakeTimings> recentAttempts = new LinkedList<HandshakeTimings>();
+
+    /**
+     * Constructor.
+     */
+    public HandshakeStats() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Adds an attempt. Its phases are aggregated as they are recorded.
+     *
+     * @param attempt timings of the attempt.
+     */
+    public void add(HandshakeTimings attempt) {
+        attempt.setStats(this);
+        synchronized (recentAttempts) {
+            recentAttempts.addLast(attempt);
+            if (recentAttempts.size() > RECENT_ATTEMPTS) {
+                recentAttempts.removeFirst();
+            }
+        }
+    }
+
+    void record(Phase phase, long micros) {
+        histograms[phase.ordinal()].record(micros);
+    }
+
+    /**
+     * Returns the number of attempts that reached a phase.
+     */
+    public long getCount(Phase phase) {
+        return histograms[phase.ordinal()].getCount();
+    }
+
+    /**
+     * Returns a percentile of the durations of a phase, in microseconds.
+     *
+     * @param phase the phase.
+     * @param percentile the percentile, between 0 and 100.
+     */
+    public long getPercentileMicros(Phase phase, double percentile) {
+        return histograms[phase.ordinal()].getPercentile(percentile);
+    }
+
+    /**
+     * Returns the timings of the latest attempts, oldest first.
+     */
+    public List<HandshakeTimings> getRecentAttempts() {
+        synchronized (recentAttempts) {
+            return new ArrayList<HandshakeTimings>(recentAttempts);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            long count = getCount(phase);
+            if (count > 0) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(phase).append("=p50:")
+                        .append(getPercentileMicros(phase, 50) / 1000).append("ms/p99:")
+                        .append(getPercentileMicros(phase, 99) / 1000).append("ms/n:")
+                        .append(count);
+            }
+        }
+        return builder.toString();
+    }
+}
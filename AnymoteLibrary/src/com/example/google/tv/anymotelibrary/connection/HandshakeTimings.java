@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations of the phases of one connection attempt, from the connection to
+ * the pairing port to the first acknowledgment of the TV. The address of the
+ * TV is known from discovery or entered by the user, so there is no name
+ * lookup to time.
+ * <p>
+ * Phases are recorded from the connecting thread, the sender thread and the
+ * socket reader thread; a phase that was not reached has a duration of
+ * {@code -1}. If the attempt is part of {@link HandshakeStats}, each duration
+ * is also added to its histograms.
+ */
+public final class HandshakeTimings {
+
+    /**
+     * Phases of a connection attempt, in order.
+     */
+    public enum Phase {
+        /** TCP connection to the pairing port. */
+        PAIRING_CONNECT,
+        /** TLS handshake on the pairing port. */
+        PAIRING_HANDSHAKE,
+        /** Pairing messages exchanged until the PIN is asked. */
+        PAIRING_EXCHANGE,
+        /** Waiting for the user to enter the PIN. */
+        PIN_WAIT,
+        /** Checking the PIN with the TV. */
+        PAIRING_CHECK,
+        /** TCP connection to the Anymote port. */
+        ANYMOTE_CONNECT,
+        /** TLS handshake on the Anymote port. */
+        ANYMOTE_HANDSHAKE,
+        /** Queueing and writing the connect message. */
+        CONNECT_INFO,
+        /** Waiting for the first acknowledgment. */
+        FIRST_ACK
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray micros = new AtomicLongArray(Phase.values().length);
+
+    /** End of the last recorded phase */
+    private volatile long lastNanos = startNanos;
+
+    private volatile HandshakeStats stats;
+
+    /**
+     * Constructor.
+     */
+    public HandshakeTimings() {
+        for (int i = 0; i < micros.length(); i++) {
+            micros.set(i, -1);
+        }
+    }
+
+    void setStats(HandshakeStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Records a phase.
+     *
+     * @param phase the phase.
+     * @param startNanos start of the phase, in {@link System#nanoTime()}
+     *            units.
+     * @return the end of the phase, to start the next one.
+     */
+    public long record(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        long duration = (now - startNanos) / 1000;
+        micros.set(phase.ordinal(), duration);
+        lastNanos = now;
+        final HandshakeStats stats = this.stats;
+        if (stats != null) {
+            stats.record(phase, duration);
+        }
+        return now;
+    }
+
+    /**
+     * Records a phase that started at the end of the last recorded one,
+     * unless it was already recorded.
+     *
+     * @param phase the phase.
+     */
+    public void recordOnce(Phase phase) {
+        if (micros.get(phase.ordinal()) < 0) {
+            record(phase, lastNanos);
+        }
+    }
+
+    /**
+     * Returns the duration of a phase in microseconds, or {@code -1} if it
+     * was not reached.
+     */
+    public long getMicros(Phase phase) {
+        return micros.get(phase.ordinal());
+    }
+
+    /**
+     * Returns the time from the start of the attempt to the end of the last
+     * recorded phase, in microseconds.
+     */
+    public long getTotalMicros() {
+        return (lastNanos - startNanos) / 1000;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("total=").append(getTotalMicros() / 1000).append("ms");
+        for (Phase phase : Phase.values()) {
+            long duration = getMicros(phase);
+            if (duration >= 0) {
+                builder.append(' ').append(phase).append('=').append(duration / 1000)
+                        .append("ms");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.google.tv.anymotelibrary.util.EventLoop;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which known TVs are online, so that the device picker opens
+ * with an up-to-date list before any scan completes.
+ * <p>
+ * Each round sends one discovery probe straight to every known TV and waits
+ * briefly for the answers, on a worker. Rounds run every minute, every few
+ * seconds while the device picker is shown, and not at all while the screen
+ * is off, so a TV costs a couple of packets per minute.
+ */
+public final class PresenceMonitor extends Handler {
+
+    private static final String LOG_TAG = "PresenceMonitor";
+    private static final boolean DEBUG = false;
+
+    /** Interval between rounds while the device picker is shown */
+    private static final long PICKER_INTERVAL_MS = 15 * 1000;
+
+    /** Interval between rounds otherwise */
+    private static final long IDLE_INTERVAL_MS = 60 * 1000;
+
+    /** Time a TV has to answer a probe */
+    private static final int PROBE_TIMEOUT_MS = 2000;
+
+    /** Number of probes in a row a TV misses before it is offline */
+    private static final int OFFLINE_MISSED_PROBES = 2;
+
+    /** Maximum number of TVs monitored */
+    private static final int MAX_DEVICES = 16;
+
+    private static final int MSG_PROBE = 1;
+
+    /**
+     * Presence of a TV at some point in time.
+     */
+    public static final class Presence {
+        private final TvDevice device;
+        private final boolean online;
+        private final long rttMillis;
+        private final long lastSeen;
+
+        Presence(TvDevice device, boolean online, long rttMillis, long lastSeen) {
+            this.device = device;
+            this.online = online;
+            this.rttMillis = rttMillis;
+            this.lastSeen = lastSeen;
+        }
+
+        public TvDevice getDevice() {
+            return device;
+        }
+
+        public boolean isOnline() {
+            return online;
+        }
+
+        /**
+         * Returns the round-trip time of the last answered probe, or
+         * {@code -1} if no probe was answered.
+         */
+        public long getRttMillis() {
+            return rttMillis;
+        }
+
+        /**
+         * Returns when the TV was last seen, in
+         * {@link SystemClock#uptimeMillis()} units, or {@code 0} if never.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return device + (online ? " online" : " offline") + " rtt=" + rttMillis + "ms";
+        }
+    }
+
+    /**
+     * State of a monitored TV. Guarded by {@link #entries}.
+     */
+    private static final class Entry {
+        TvDevice device;
+        boolean online;
+        long rttMillis = -1;
+        long lastSeen;
+        int missedProbes;
+    }
+
+    private final String serviceName;
+
+    /** Monitored TVs, by name */
+    private final Map<TvDevice, Entry> entries = new HashMap<TvDevice, Entry>();
+
+    // Only used on the event loop.
+    private boolean running;
+    private boolean screenOn = true;
+    private boolean pickerShown;
+    private boolean roundRunning;
+
+    /**
+     * Constructor.
+     *
+     * @param serviceName the service the TVs are probed for.
+     */
+    PresenceMonitor(String serviceName) {
+        super(EventLoop.getLooper());
+        this.serviceName = serviceName;
+    }
+
+    /**
+     * Starts monitoring.
+     */
+    public void start() {
+        post(new Runnable() {
+            public void run() {
+                running = true;
+                reschedule(true);
+            }
+        });
+    }
+
+    /**
+     * Stops monitoring. The TVs stay known.
+     */
+    public void stop() {
+        post(new Runnable() {
+            public void run() {
+                running = false;
+                removeMessages(MSG_PROBE);
+            }
+        });
+    }
+
+    /**
+     * Pauses monitoring while the screen is off.
+     *
+     * @param on whether the screen is on.
+     */
+    public void setScreenOn(final boolean on) {
+        post(new Runnable() {
+            public void run() {
+                if (screenOn != on) {
+                    screenOn = on;
+                    reschedule(on);
+                }
+            }
+        });
+    }
+
+    /**
+     * Monitors more often while the device picker is shown.
+     *
+     * @param shown whether the picker is shown.
+     */
+    public void setPickerShown(final boolean shown) {
+        post(new Runnable() {
+            public void run() {
+                if (pickerShown != shown) {
+                    pickerShown = shown;
+                    reschedule(shown);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a TV to monitor, or updates its address.
+     *
+     * @param device the TV.
+     * @param seen whether the TV was just seen, for example answering a scan.
+     */
+    public void add(TvDevice device, boolean seen) {
+        synchronized (entries) {
+            Entry entry = entries.get(device);
+            if (entry == null) {
+                if (entries.size() >= MAX_DEVICES) {
+                    evictOldest();
+                }
+                entry = new Entry();
+                entries.put(device, entry);
+            }
+            entry.device = device;
+            if (seen) {
+                entry.online = true;
+                entry.lastSeen = SystemClock.uptimeMillis();
+                entry.missedProbes = 0;
+            }
+        }
+    }
+
+    /**
+     * Stops monitoring a TV.
+     *
+     * @param device the TV.
+     */
+    public void remove(TvDevice device) {
+        synchronized (entries) {
+            entries.remove(device);
+        }
+    }
+
+    /**
+     * Returns the presence of all the monitored TVs.
+     */
+    public List<Presence> getPresence() {
+        synchronized (entries) {
+            List<Presence> presence = new ArrayList<Presence>(entries.size());
+            for (Entry entry : entries.values()) {
+                presence.add(new Presence(
+                        entry.device, entry.online, entry.rttMillis, entry.lastSeen));
+            }
+            return presence;
+        }
+    }
+
+    /**
+     * Returns the TVs that are online.
+     */
+    public List<TvDevice> getOnlineDevices() {
+        synchronized (entries) {
+            List<TvDevice> devices = new ArrayList<TvDevice>();
+            for (Entry entry : entries.values()) {
+                if (entry.online) {
+                    devices.add(entry.device);
+                }
+            }
+            return devices;
+        }
+    }
+
+    private void evictOldest() {
+        TvDevice oldest = null;
+        long oldestSeen = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            if (entry.lastSeen < oldestSeen) {
+                oldest = entry.device;
+                oldestSeen = entry.lastSeen;
+            }
+        }
+        entries.remove(oldest);
+    }
+
+    /**
+     * Schedules the next round after a change of state.
+     *
+     * @param now whether to run a round right away.
+     */
+    private void reschedule(boolean now) {
+        removeMessages(MSG_PROBE);
+        if (!running || !screenOn) {
+            return;
+        }
+        if (now) {
+            sendEmptyMessage(MSG_PROBE);
+        } else {
+            sendEmptyMessageDelayed(MSG_PROBE, getInterval());
+        }
+    }
+
+    private long getInterval() {
+        return pickerShown ? PICKER_INTERVAL_MS : IDLE_INTERVAL_MS;
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != MSG_PROBE) {
+            return;
+        }
+        sendEmptyMessageDelayed(MSG_PROBE, getInterval());
+        if (roundRunning) {
+            return;
+        }
+        final List<TvDevice> targets = new ArrayList<TvDevice>();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                targets.add(entry.device);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        roundRunning = true;
+        EventLoop.getWorkers().execute(new Runnable() {
+            public void run() {
+                try {
+                    runRound(targets);
+                } finally {
+                    post(new Runnable() {
+                        public void run() {
+                            roundRunning = false;
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Probes TVs and waits for their answers, on a worker.
+     *
+     * @param targets the TVs.
+     */
+    private void runRound(List<TvDevice> targets) {
+        long[] rtts = new long[targets.size()];
+        for (int i = 0; i < rtts.length; i++) {
+            rtts[i] = -1;
+        }
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            byte[] message =
+                    DiscoveryProtocol.makeRequestMessage(serviceName, socket.getLocalPort());
+            long start = System.nanoTime();
+            for (TvDevice target : targets) {
+                socket.send(new DatagramPacket(message, message.length, target.getAddress(),
+                        DiscoveryProtocol.BROADCAST_SERVER_PORT));
+            }
+
+            byte[] buffer = new byte[256];
+            String[] tokens = new String[3];
+            int answered = 0;
+            while (answered < rtts.length) {
+                long remaining = PROBE_TIMEOUT_MS - (System.nanoTime() - start) / 1000000;
+                if (remaining <= 0) {
+                    break;
+                }
+                socket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                long rtt = (System.nanoTime() - start) / 1000000;
+                if (DiscoveryProtocol.parseResponse(
+                        serviceName, packet.getData(), packet.getLength(), tokens) < 0) {
+                    continue;
+                }
+                for (int i = 0; i < rtts.length; i++) {
+                    if (rtts[i] < 0 && targets.get(i).getAddress().equals(packet.getAddress())) {
+                        rtts[i] = rtt;
+                        answered++;
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Most likely no network: the round does not count.
+            Log.w(LOG_TAG, "Probe round failed: " + e.getMessage());
+            return;
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        update(targets, rtts);
+    }
+
+    private void update(List<TvDevice> targets, long[] rtts) {
+        long now = SystemClock.uptimeMillis();
+        synchronized (entries) {
+            for (int i = 0; i < rtts.length; i++) {
+                Entry entry = entries.get(targets.get(i));
+                if (entry == null || entry.device != targets.get(i)) {
+                    // Removed, or moved to another address since.
+                    continue;
+                }
+                if (rtts[i] >= 0) {
+                    entry.online = true;
+                    entry.rttMillis = rtts[i];
+                    entry.lastSeen = now;
+                    entry.missedProbes = 0;
+                } else if (++entry.missedProbes >= OFFLINE_MISSED_PROBES) {
+                    entry.online = false;
+                }
+                if (DEBUG) {
+                    Log.d(LOG_TAG, entry.device + " online=" + entry.online + " rtt="
+                            + entry.rttMillis + "ms");
+                }
+            }
+        }
+    }
+}
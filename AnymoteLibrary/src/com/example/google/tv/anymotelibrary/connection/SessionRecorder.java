@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records the Anymote messages exchanged over a connection to a compact
+ * binary log, which {@link SessionReplayer} can play back.
+ * <p>
+ * Anymote messages are length-delimited protocol buffers. The recorder taps
+ * the socket streams, splits them into messages and logs each message as a
+ * record. The log starts with {@link #MAGIC}, followed by records made of:
+ * <ul>
+ * <li>one byte, {@link #OUTBOUND} or {@link #INBOUND}
+ * <li>the time elapsed since the previous record, in microseconds, as a varint
+ * <li>the length of the message, as a varint
+ * <li>the message itself
+ * </ul>
+ */
+public final class SessionRecorder {
+
+    /**
+     * First bytes of a session log.
+     */
+    static final byte[] MAGIC = {
+            'A', 'M', 'C', '1' };
+
+    /**
+     * Direction of a message sent to the TV.
+     */
+    static final int OUTBOUND = 0;
+
+    /**
+     * Direction of a message received from the TV.
+     */
+    static final int INBOUND = 1;
+
+    /**
+     * Largest message the recorder accepts; anything bigger means the stream
+     * is not Anymote.
+     */
+    static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    private final OutputStream log;
+    private long lastRecordNanos;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param log stream the session log is written to.
+     * @throws IOException if the log header could not be written.
+     */
+    public SessionRecorder(OutputStream log) throws IOException {
+        this.log = new BufferedOutputStream(log);
+        this.log.write(MAGIC);
+        lastRecordNanos = System.nanoTime();
+    }
+
+    /**
+     * Wraps the stream of messages received from the TV.
+     *
+     * @param in socket input stream.
+     * @return a stream that records what is read from {@code in}.
+     */
+    public InputStream tapInput(InputStream in) {
+        final FrameSplitter splitter = new FrameSplitter(INBOUND);
+        return new FilterInputStream(in) {
+                @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    splitter.write(b);
+                }
+                return b;
+            }
+
+                @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                for (int i = 0; i < read; i++) {
+                    splitter.write(buffer[offset + i]);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps the stream of messages sent to the TV.
+     *
+     * @param out socket output stream.
+     * @return a stream that records what is written to {@code out}.
+     */
+    public OutputStream tapOutput(OutputStream out) {
+        final FrameSplitter splitter = new FrameSplitter(OUTBOUND);
+        return new FilterOutputStream(out) {
+                @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                splitter.write(b);
+            }
+
+                @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                out.write(buffer, offset, count);
+                for (int i = 0; i < count; i++) {
+                    splitter.write(buffer[offset + i]);
+                }
+            }
+        };
+    }
+
+    /**
+     * Flushes and closes the log. Messages exchanged afterwards are not
+     * recorded.
+     *
+     * @throws IOException if the log could not be written.
+     */
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            log.close();
+        }
+    }
+
+    /**
+     * Appends a message to the log.
+     */
+    private synchronized void record(int direction, byte[] message, int length) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            log.write(direction);
+            writeVarint(log, (now - lastRecordNanos) / 1000);
+            writeVarint(log, length);
+            log.write(message, 0, length);
+        } catch (IOException e) {
+            // Recording must never break the connection; stop recording.
+            closed = true;
+        }
+        lastRecordNanos = now;
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Splits a byte stream into length-delimited messages.
+     */
+    private final class FrameSplitter {
+        private final int direction;
+        private byte[] message = new byte[256];
+        private int length;
+        private int lengthShift;
+        private int position;
+        private boolean readingLength = true;
+
+        FrameSplitter(int direction) {
+            this.direction = direction;
+        }
+
+        void write(int b) {
+            if (readingLength) {
+                length |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if ((b & 0x80) == 0 || lengthShift > 28) {
+                    if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                        length = 0;
+                    }
+                    if (length > message.length) {
+                        message = new byte[length];
+                    }
+                    readingLength = false;
+                    position = 0;
+                    if (length == 0) {
+                        endMessage();
+                    }
+                }
+                return;
+            }
+            message[position++] = (byte) b;
+            if (position == length) {
+                endMessage();
+            }
+        }
+
+        private void endMessage() {
+            record(direction, message, length);
+            length = 0;
+            lengthShift = 0;
+            readingLength = true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymotelibrary.connection;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Plays back a session log written by {@link SessionRecorder}, by sending
+ * the recorded outbound messages to an Anymote server. Messages received from
+ * the TV in the original session are skipped.
+ */
+public final class SessionReplayer {
+
+    /**
+     * Statistics of a replay.
+     */
+    public static final class Result {
+        private final int messageCount;
+        private final long byteCount;
+        private final long elapsedNanos;
+
+        Result(int messageCount, long byteCount, long elapsedNanos) {
+            this.messageCount = messageCount;
+            this.byteCount = byteCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the number of messages sent.
+         */
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        /**
+         * Returns the number of bytes sent, including length prefixes.
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * Returns the time it took to send all the messages, in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d bytes in %.3f ms", messageCount, byteCount,
+                    elapsedNanos / 1e6);
+        }
+    }
+
+    private final InputStream log;
+
+    /**
+     * Constructor.
+     *
+     * @param log stream the session log is read from.
+     */
+    public SessionReplayer(InputStream log) {
+        this.log = new BufferedInputStream(log);
+    }
+
+    /**
+     * Sends the outbound messages of the log.
+     *
+     * @param out stream connected to the Anymote server.
+     * @param realTime {@code true} to keep the original timing of the
+     *            session, {@code false} to send as fast as possible.
+     * @return statistics of the replay.
+     * @throws IOException if the log is invalid or the messages could not be
+     *             sent.
+     * @throws InterruptedException if interrupted while waiting to send a
+     *             message.
+     */
+    public Result replay(OutputStream out, boolean realTime)
+            throws IOException, InterruptedException {
+        for (byte expected : SessionRecorder.MAGIC) {
+            if (log.read() != expected) {
+                throw new IOException("Not a session log");
+            }
+        }
+
+        byte[] message = new byte[256];
+        int messageCount = 0;
+        long byteCount = 0;
+        long startNanos = System.nanoTime();
+        long sessionMicros = 0;
+
+        int direction;
+        while ((direction = log.read()) >= 0) {
+            sessionMicros += readVarint(log);
+            long recordLength = readVarint(log);
+            if (recordLength < 0 || recordLength > SessionRecorder.MAX_MESSAGE_LENGTH) {
+                throw new IOException("Invalid message length in session log: "
+                        + recordLength);
+            }
+            int length = (int) recordLength;
+            if (length > message.length) {
+                message = new byte[length];
+            }
+            readFully(log, message, length);
+            if (direction != SessionRecorder.OUTBOUND) {
+                continue;
+            }
+
+            if (realTime) {
+                long waitNanos = sessionMicros * 1000 - (System.nanoTime() - startNanos);
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            }
+            SessionRecorder.writeVarint(out, length);
+            out.write(message, 0, length);
+            out.flush();
+            messageCount++;
+            byteCount += length + varintSize(length);
+        }
+        return new Result(messageCount, byteCount, System.nanoTime() - startNanos);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated session log");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in session log");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int position = 0;
+        while (position < length) {
+            int read = in.read(buffer, position, length - position);
+            if (read < 0) {
+                throw new EOFException("Truncated session log");
+            }
+            position += read;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -16,9 +16,12 @@
 
 package com.example.google.tv.anymotelibrary.connection;
 
+import android.content.SharedPreferences;
 import android.os.Build;
 
 import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 /**
  * This class represents the Tv Device to connect to.
@@ -99,6 +102,42 @@ public class TvDevice implements Comparable<TvDevice> {
         return compareTo(another) == 0;
     }
 
+    /**
+     * Stores the device in preferences.
+     * 
+     * @param editor editor of the preferences.
+     */
+    public void storeTo(SharedPreferences.Editor editor) {
+        editor.putString(PREF_NAME, name);
+        editor.putString(PREF_ADDRESS, address.getHostAddress());
+        editor.putInt(PREF_PORT, port);
+    }
+
+    /**
+     * Loads a device stored by {@link #storeTo(SharedPreferences.Editor)}.
+     * 
+     * @param preferences the preferences.
+     * @return the device, or {@code null} if none is stored.
+     */
+    public static TvDevice loadFrom(SharedPreferences preferences) {
+        String name = preferences.getString(PREF_NAME, null);
+        String host = preferences.getString(PREF_ADDRESS, null);
+        int port = preferences.getInt(PREF_PORT, -1);
+        if (name == null || host == null || port < 0) {
+            return null;
+        }
+        try {
+            // A literal address is parsed without any lookup.
+            InetAddress address = InetAddress.getByName(host);
+            if (address instanceof Inet4Address) {
+                return new TvDevice(name, (Inet4Address) address, port);
+            }
+        } catch (UnknownHostException e) {
+            // Stored address is invalid.
+        }
+        return null;
+    }
+
     /**
      * Gets the string representing the device address.
      * 
@@ -28,6 +28,7 @@ import com.example.google.tv.anymotelibrary.R;
 import com.example.google.tv.anymotelibrary.client.AnymoteClientService;
 import com.example.google.tv.anymotelibrary.connection.BroadcastDiscoveryClient.BroadcastAdvertisement;
 import com.example.google.tv.anymotelibrary.connection.BroadcastDiscoveryClient.DeviceDiscoveredListener;
+import com.example.google.tv.anymotelibrary.util.EventLoop;
 
 import java.io.IOException;
 import java.net.Inet4Address;
@@ -36,7 +37,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Service which discovers Google TV devices on the local network.
+ * Service which discovers Google TV devices on the local network. Discovery
+ * is driven from the {@link EventLoop}.
+ * <p>
+ * Each scan belongs to a {@link DiscoverySession}. While any session is
+ * scanning, one {@link BroadcastDiscoveryClient} probes the network and its
+ * responses go to all the running sessions.
  */
 public class TvDiscoveryService extends Handler {
 
@@ -58,24 +64,25 @@ public class TvDiscoveryService extends Handler {
 
     /**
      * The Broadcast client that listens for L3 broadcasts for Anymote service
-     * on the network.
+     * on the network, shared by the running sessions. Only used on the event
+     * loop.
      */
     private BroadcastDiscoveryClient broadcastClient;
 
     /**
-     * The thread that handles network communications.
+     * Sessions that are scanning. Only used on the event loop.
      */
-    private Thread broadcastThread;
+    private final List<DiscoverySession> sessions = new ArrayList<DiscoverySession>();
 
     /**
-     * The wifi connectivity manager.
+     * Keeps track of the TVs found so far.
      */
-    WifiManager wifiManager;
+    private PresenceMonitor presenceMonitor;
 
     /**
-     * All discovered TVs are stored in this list.
+     * The wifi connectivity manager.
      */
-    private List<TvDevice> devices;
+    WifiManager wifiManager;
 
     /**
      * Constructor
@@ -84,8 +91,8 @@ public class TvDiscoveryService extends Handler {
      *            device.
      */
     public TvDiscoveryService(AnymoteClientService coreService) {
+        super(EventLoop.getLooper());
         this.coreService = coreService;
-        devices = new ArrayList();
         wifiManager = (WifiManager) coreService.getSystemService(Activity.WIFI_SERVICE);
     }
 
@@ -106,11 +113,6 @@ public class TvDiscoveryService extends Handler {
         sendMessage(type, null, 0);
     }
 
-    /**
-     * Lock object to synchronize threads.
-     */
-    Object broadCastSync = new Object();
-
     /**
      * Send messages to the handler with a delay.
      * 
@@ -128,38 +130,92 @@ public class TvDiscoveryService extends Handler {
     }
 
     /**
-     * The looper for thread that discovers Google TV devices offering Anymote
-     * service on the local network.
+     * Creates a session to scan for TVs. Sessions can scan at the same time,
+     * and each can be started again to rescan.
+     * 
+     * @return a new session, not started.
+     */
+    public DiscoverySession newSession() {
+        return new DiscoverySession(this);
+    }
+
+    /**
+     * Returns the monitor of the TVs found so far, creating it if needed. It
+     * is not started.
+     * 
+     * @return the monitor.
      */
-    DiscoveryLooper looper = new DiscoveryLooper();
+    public synchronized PresenceMonitor getPresenceMonitor() {
+        if (presenceMonitor == null) {
+            presenceMonitor = new PresenceMonitor(getServiceName());
+        }
+        return presenceMonitor;
+    }
 
     /**
      * Returns a list of Google TV devices offering Anymote service on the local
-     * network.
+     * network, using a new session.
      * 
-     * @return list of TV devices
+     * @return list of TV devices, or {@code null} if wifi is not available.
      */
     public List<TvDevice> discoverTvs() {
-        looper.start();
-        try {
-            synchronized (broadCastSync) {
-                broadCastSync.wait();
+        return newSession().scan();
+    }
+
+    /**
+     * Adds a session to the running scan, starting one if needed. A session
+     * that is already scanning gets a new burst of probes and a full timeout.
+     */
+    void startSession(final DiscoverySession session) {
+        post(new Runnable() {
+            public void run() {
+                if (!session.isScanning()) {
+                    // Cancelled before it started.
+                    return;
+                }
+                if (broadcastClient != null) {
+                    broadcastClient.resetProbes();
+                } else if (!startBroadcast()) {
+                    session.onScanComplete(false);
+                    return;
+                }
+                if (!sessions.contains(session)) {
+                    sessions.add(session);
+                }
+                removeMessages(RequestType.BROADCAST_TIMEOUT.ordinal(), session);
+                sendMessage(RequestType.BROADCAST_TIMEOUT, session, getBroadcastTimeout());
             }
+        });
+    }
 
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Interrupted while scanning for tvs");
-            // Return empty array list as this.devices might be unsafe
-            // because of background looper, which may still be writing to it.
-            return new ArrayList<TvDevice>();
+    /**
+     * Completes the scan of a session, and stops probing once no session is
+     * scanning.
+     */
+    void finishSession(final DiscoverySession session) {
+        post(new Runnable() {
+            public void run() {
+                onSessionComplete(session);
+            }
+        });
+    }
+
+    private void onSessionComplete(DiscoverySession session) {
+        removeMessages(RequestType.BROADCAST_TIMEOUT.ordinal(), session);
+        sessions.remove(session);
+        session.onScanComplete(true);
+        if (sessions.isEmpty()) {
+            stopBroadcast();
         }
-        return devices;
     }
 
     /**
      * Called when network scan for discovering Google TV devices is completed.
      */
     public void onDeviceScanComplete() {
-        stopBroadcast();
+        for (DiscoverySession session : new ArrayList<DiscoverySession>(sessions)) {
+            onSessionComplete(session);
+        }
     }
 
     /**
@@ -168,80 +224,103 @@ public class TvDiscoveryService extends Handler {
      * @param dev
      */
     public void onDeviceFound(TvDevice dev) {
-        devices.add(dev);
+        getPresenceMonitor().add(dev, true);
+        for (DiscoverySession session : sessions) {
+            session.onDeviceFound(dev);
+        }
+    }
+
+    /**
+     * Restarts the probes of the running scans from a burst, and gives them a
+     * full timeout again, when the network changed.
+     */
+    public void onNetworkChanged() {
+        post(new Runnable() {
+            public void run() {
+                if (broadcastClient == null) {
+                    return;
+                }
+                broadcastClient.resetProbes();
+                for (DiscoverySession session : sessions) {
+                    removeMessages(RequestType.BROADCAST_TIMEOUT.ordinal(), session);
+                    sendMessage(RequestType.BROADCAST_TIMEOUT, session, getBroadcastTimeout());
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes the running scans, and stops the presence monitor.
+     */
+    public void shutdown() {
+        post(new Runnable() {
+            public void run() {
+                onDeviceScanComplete();
+                stopBroadcast();
+            }
+        });
+        getPresenceMonitor().stop();
+    }
+
+    private int getBroadcastTimeout() {
+        return coreService.getResources().getInteger(R.integer.broadcast_timeout);
     }
 
     /**
      * Stops looking for Google TV devices on the network.
      */
-    private synchronized void stopBroadcast() {
+    private void stopBroadcast() {
         if (broadcastClient != null) {
             Log.i(LOG_TAG, "Disabling broadcast");
             broadcastClient.stop();
             broadcastClient = null;
-            try {
-                broadcastThread.join(1000);
-            } catch (InterruptedException e) {
-                Log.i(LOG_TAG, "Timeout while waiting for thread execution to complete");
-            }
-            broadcastThread = null;
-            onDeviceScanComplete();
         }
     }
 
     /**
-     * Starts scanning the local network for Google TV devices.
+     * Starts probing the local network for Google TV devices, on the event
+     * loop. The responses are received on a worker, and the devices found are
+     * added to the sessions on the event loop.
+     * 
+     * @return whether probing started, {@code false} if wifi is not available.
      */
-    private synchronized void startBroadcast() {
+    private boolean startBroadcast() {
         Inet4Address broadcastAddress = getBroadcastAddress();
         if (broadcastAddress == null) {
-            stopBroadcast();
-            return;
-        }
-        if (broadcastClient == null) {
-            Log.i(LOG_TAG, "Enabling broadcast");
-            broadcastClient = new BroadcastDiscoveryClient(broadcastAddress, getServiceName());
-            broadcastClient.setDeviceDiscoveredListener(new DeviceDiscoveredListener() {
-                public void onDeviceDiscovered(BroadcastAdvertisement advert) {
-                    TvDevice remoteDevice = getDeviceFromAdvert(advert);
-                    Log.i(LOG_TAG, "Found wireless device: " + remoteDevice.getName());
-                    onDeviceFound(remoteDevice);
-                }
-            });
-
-            broadcastThread = new Thread(broadcastClient);
-            broadcastThread.start();
-            int broadcastTimeout = coreService.getResources().getInteger(
-                    R.integer.broadcast_timeout);
-            sendMessage(RequestType.BROADCAST_TIMEOUT, null, broadcastTimeout);
+            return false;
         }
-    }
-
-    /**
-     * Internal Looper thread that does the discovery
-     */
-    private class DiscoveryLooper extends Thread {
-        public Handler mHandler;
-
-        @Override
-        public void run() {
-            startBroadcast();
-            if (getBroadcastAddress() == null) {
-                devices = null;
-                return;
+        Log.i(LOG_TAG, "Enabling broadcast");
+        final BroadcastDiscoveryClient client =
+                new BroadcastDiscoveryClient(broadcastAddress, getServiceName());
+        client.setDeviceDiscoveredListener(new DeviceDiscoveredListener() {
+            public void onDeviceDiscovered(BroadcastAdvertisement advert) {
+                final TvDevice remoteDevice = getDeviceFromAdvert(advert);
+                Log.i(LOG_TAG, "Found wireless device: " + remoteDevice.getName());
+                post(new Runnable() {
+                    public void run() {
+                        if (broadcastClient == client) {
+                            onDeviceFound(remoteDevice);
+                        }
+                    }
+                });
             }
 
-        }
+            public void onResultsStable() {
+                if (broadcastClient == client) {
+                    onDeviceScanComplete();
+                }
+            }
+        });
+        broadcastClient = client;
+        EventLoop.startThread("AnymoteDiscovery", client);
+        return true;
     }
 
     public void handleMessage(Message msg) {
         RequestType request = RequestType.values()[msg.what];
 
         if (request == RequestType.BROADCAST_TIMEOUT) {
-            stopBroadcast();
-            synchronized (broadCastSync) {
-                broadCastSync.notifyAll();
-            }
+            onSessionComplete((DiscoverySession) msg.obj);
         }
     }
 
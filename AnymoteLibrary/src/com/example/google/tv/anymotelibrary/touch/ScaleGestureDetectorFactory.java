@@ -30,6 +30,19 @@ import java.lang.reflect.InvocationTargetException;
 public class ScaleGestureDetectorFactory {
     private static final int MIN_API_LEVEL_MULTITOUCH = 5;
 
+    /**
+     * Implementation loaded by reflection, so that it is never verified on
+     * API levels without multitouch.
+     */
+    private static final String IMPL_CLASS_NAME =
+            "com.example.google.tv.anymotelibrary.touch.ScaleGestureDetectorImpl";
+
+    /**
+     * Constructor of the implementation, looked up once and shared by all
+     * handlers.
+     */
+    private static Constructor<?> sImplConstructor;
+
     private ScaleGestureDetectorFactory() {
         // prevents instantiation
         throw new IllegalStateException();
@@ -47,11 +60,7 @@ public class ScaleGestureDetectorFactory {
     private static ScaleGestureDetector createScaleGestureDetectorImpl(View view,
             ScaleGestureDetector.OnScaleGestureListener listener) {
         try {
-            Class<?> clazz = Class.forName(
-                    "com.google.android.apps.tvremote.backport.ScaleGestureDetectorImpl");
-            Constructor<?> constructor = clazz.getConstructor(View.class,
-                    ScaleGestureDetector.OnScaleGestureListener.class);
-            return (ScaleGestureDetector) constructor.newInstance(view, listener);
+            return (ScaleGestureDetector) getImplConstructor().newInstance(view, listener);
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -69,4 +78,14 @@ public class ScaleGestureDetectorFactory {
         }
         return null;
     }
+
+    private static synchronized Constructor<?> getImplConstructor()
+            throws ClassNotFoundException, NoSuchMethodException {
+        if (sImplConstructor == null) {
+            Class<?> clazz = Class.forName(IMPL_CLASS_NAME);
+            sImplConstructor = clazz.getConstructor(View.class,
+                    ScaleGestureDetector.OnScaleGestureListener.class);
+        }
+        return sImplConstructor;
+    }
 }
@@ -56,8 +56,22 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
     private final OnScaleGestureListener mListener;
     private boolean mGestureInProgress;
 
-    private MotionEvent mPrevEvent;
-    private MotionEvent mCurrEvent;
+    /**
+     * Pointer state of the previous accepted event, and time of the current
+     * one. Kept in primitive fields rather than in copies of the events so
+     * that a gesture does not allocate.
+     */
+    private float mPrevX0;
+    private float mPrevY0;
+    private float mPrevX1;
+    private float mPrevY1;
+    private long mPrevTime;
+    private long mCurrTime;
+
+    /**
+     * Reused to query the visible rectangle of the view.
+     */
+    private final Rect mTmpRect = new Rect();
 
     private float mFocusX;
     private float mFocusY;
@@ -87,7 +101,7 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
     public boolean onTouchEvent(MotionEvent event) {
         final int action = event.getAction();
         boolean handled = true;
-        Rect rect = new Rect();
+        final Rect rect = mTmpRect;
 
         if (!mView.getGlobalVisibleRect(rect)) {
             return false;
@@ -107,7 +121,7 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
                 // Be paranoid in case we missed an event
                 reset();
 
-                mPrevEvent = MotionEvent.obtain(event);
+                setPrevious(event);
                 mTimeDelta = 0;
 
                 setContext(event);
@@ -230,8 +244,7 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
                         final boolean updatePrevious = mListener.onScale(this);
 
                         if (updatePrevious) {
-                            mPrevEvent.recycle();
-                            mPrevEvent = MotionEvent.obtain(event);
+                            setPrevious(event);
                         }
                     }
                     break;
@@ -258,22 +271,30 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
         return event.getY(pointerIndex) + viewRect.top;
     }
 
+    /**
+     * Records the pointer state of {@code event} as the previous accepted
+     * event.
+     */
+    private void setPrevious(MotionEvent event) {
+        mPrevX0 = event.getX(0);
+        mPrevY0 = event.getY(0);
+        mPrevX1 = event.getX(1);
+        mPrevY1 = event.getY(1);
+        mPrevTime = event.getEventTime();
+        mPrevPressure = event.getPressure(0) + event.getPressure(1);
+    }
+
     private void setContext(MotionEvent curr) {
-        if (mCurrEvent != null) {
-            mCurrEvent.recycle();
-        }
-        mCurrEvent = MotionEvent.obtain(curr);
+        mCurrTime = curr.getEventTime();
 
         mCurrLen = -1;
         mPrevLen = -1;
         mScaleFactor = -1;
 
-        final MotionEvent prev = mPrevEvent;
-
-        final float px0 = prev.getX(0);
-        final float py0 = prev.getY(0);
-        final float px1 = prev.getX(1);
-        final float py1 = prev.getY(1);
+        final float px0 = mPrevX0;
+        final float py0 = mPrevY0;
+        final float px1 = mPrevX1;
+        final float py1 = mPrevY1;
         final float cx0 = curr.getX(0);
         final float cy0 = curr.getY(0);
         final float cx1 = curr.getX(1);
@@ -290,20 +311,11 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
 
         mFocusX = cx0 + cvx * 0.5f;
         mFocusY = cy0 + cvy * 0.5f;
-        mTimeDelta = curr.getEventTime() - prev.getEventTime();
+        mTimeDelta = mCurrTime - mPrevTime;
         mCurrPressure = curr.getPressure(0) + curr.getPressure(1);
-        mPrevPressure = prev.getPressure(0) + prev.getPressure(1);
     }
 
     private void reset() {
-        if (mPrevEvent != null) {
-            mPrevEvent.recycle();
-            mPrevEvent = null;
-        }
-        if (mCurrEvent != null) {
-            mCurrEvent.recycle();
-            mCurrEvent = null;
-        }
         mSloppyGesture = false;
         mGestureInProgress = false;
     }
@@ -406,6 +418,6 @@ public class ScaleGestureDetectorImpl implements ScaleGestureDetector {
      * @return Current event time in milliseconds.
      */
     public long getEventTime() {
-        return mCurrEvent.getEventTime();
+        return mCurrTime;
     }
 }
@@ -26,311 +26,95 @@ import com.example.google.tv.anymotelibrary.client.AnymoteSender;
  */
 public enum Action {
 
-    BACKSPACE {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DEL);
-        }
-    },
-
-    CLICK_DOWN {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.BTN_MOUSE, Key.Action.DOWN);
-        }
-    },
-
-    CLICK_UP {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.BTN_MOUSE, Key.Action.UP);
-        }
-    },
-
-    DPAD_CENTER {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DPAD_CENTER);
-        }
-    },
-
-    DPAD_DOWN {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DPAD_DOWN);
-        }
-    },
-
-    DPAD_DOWN_PRESSED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_DOWN, Key.Action.DOWN);
-        }
-    },
-
-    DPAD_DOWN_RELEASED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_DOWN, Key.Action.UP);
-        }
-    },
-
-    DPAD_LEFT {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DPAD_LEFT);
-        }
-    },
-
-    DPAD_LEFT_PRESSED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_LEFT, Key.Action.DOWN);
-        }
-    },
-
-    DPAD_LEFT_RELEASED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_LEFT, Key.Action.UP);
-        }
-    },
-
-    DPAD_RIGHT {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DPAD_RIGHT);
-        }
-    },
-
-    DPAD_RIGHT_PRESSED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_RIGHT, Key.Action.DOWN);
-        }
-    },
-
-    DPAD_RIGHT_RELEASED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_RIGHT, Key.Action.UP);
-        }
-    },
-
-    DPAD_UP {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DPAD_UP);
-        }
-    },
-
-    DPAD_UP_PRESSED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_UP, Key.Action.DOWN);
-        }
-    },
-
-    DPAD_UP_RELEASED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKey(Code.KEYCODE_DPAD_UP, Key.Action.UP);
-        }
-    },
-
-    ENTER {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_ENTER);
-        }
-    },
-
-    ESCAPE {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_ESCAPE);
-        }
-    },
-
-    GO_TO_DVR {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_DVR);
-        }
-    },
-
-    GO_TO_GUIDE {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_GUIDE);
-        }
-    },
-
-    GO_TO_LIVE_TV {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_LIVE);
-        }
-    },
-
-    NAVBAR {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_SEARCH);
-        }
-    },
-
-    POWER {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_POWER);
-        }
-    },
-
-    VOLUME_DOWN {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_VOLUME_DOWN);
-        }
-    },
-
-    VOLUME_UP {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_VOLUME_UP);
-        }
-    },
-
-    ZOOM_IN {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_ZOOM_IN);
-        }
-    },
-
-    ZOOM_OUT {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_ZOOM_OUT);
-        }
-    },
-
-    COLOR_RED {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_PROG_RED);
-        }
-    },
-
-    COLOR_GREEN {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_PROG_GREEN);
-        }
-    },
-
-    COLOR_YELLOW {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_PROG_YELLOW);
-        }
-    },
-
-    COLOR_BLUE {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_PROG_BLUE);
-        }
-    },
-
-    POWER_BD {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_BD_POWER);
-        }
-    },
-
-    INPUT_BD {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_BD_INPUT);
-        }
-    },
-
-    POWER_AVR {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_AVR_POWER);
-        }
-    },
-
-    INPUT_AVR {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_AVR_INPUT);
-        }
-    },
+    BACKSPACE(Code.KEYCODE_DEL),
+    CLICK_DOWN(Code.BTN_MOUSE, Key.Action.DOWN),
+    CLICK_UP(Code.BTN_MOUSE, Key.Action.UP),
+    DPAD_CENTER(Code.KEYCODE_DPAD_CENTER),
+    DPAD_DOWN(Code.KEYCODE_DPAD_DOWN),
+    DPAD_DOWN_PRESSED(Code.KEYCODE_DPAD_DOWN, Key.Action.DOWN),
+    DPAD_DOWN_RELEASED(Code.KEYCODE_DPAD_DOWN, Key.Action.UP),
+    DPAD_LEFT(Code.KEYCODE_DPAD_LEFT),
+    DPAD_LEFT_PRESSED(Code.KEYCODE_DPAD_LEFT, Key.Action.DOWN),
+    DPAD_LEFT_RELEASED(Code.KEYCODE_DPAD_LEFT, Key.Action.UP),
+    DPAD_RIGHT(Code.KEYCODE_DPAD_RIGHT),
+    DPAD_RIGHT_PRESSED(Code.KEYCODE_DPAD_RIGHT, Key.Action.DOWN),
+    DPAD_RIGHT_RELEASED(Code.KEYCODE_DPAD_RIGHT, Key.Action.UP),
+    DPAD_UP(Code.KEYCODE_DPAD_UP),
+    DPAD_UP_PRESSED(Code.KEYCODE_DPAD_UP, Key.Action.DOWN),
+    DPAD_UP_RELEASED(Code.KEYCODE_DPAD_UP, Key.Action.UP),
+    ENTER(Code.KEYCODE_ENTER),
+    ESCAPE(Code.KEYCODE_ESCAPE),
+    GO_TO_DVR(Code.KEYCODE_DVR),
+    GO_TO_GUIDE(Code.KEYCODE_GUIDE),
+    GO_TO_LIVE_TV(Code.KEYCODE_LIVE),
+    NAVBAR(Code.KEYCODE_SEARCH),
+    POWER(Code.KEYCODE_POWER),
+    VOLUME_DOWN(Code.KEYCODE_VOLUME_DOWN),
+    VOLUME_UP(Code.KEYCODE_VOLUME_UP),
+    ZOOM_IN(Code.KEYCODE_ZOOM_IN),
+    ZOOM_OUT(Code.KEYCODE_ZOOM_OUT),
+    COLOR_RED(Code.KEYCODE_PROG_RED),
+    COLOR_GREEN(Code.KEYCODE_PROG_GREEN),
+    COLOR_YELLOW(Code.KEYCODE_PROG_YELLOW),
+    COLOR_BLUE(Code.KEYCODE_PROG_BLUE),
+    POWER_BD(Code.KEYCODE_BD_POWER),
+    INPUT_BD(Code.KEYCODE_BD_INPUT),
+    POWER_AVR(Code.KEYCODE_AVR_POWER),
+    INPUT_AVR(Code.KEYCODE_AVR_INPUT),
+    POWER_TV(Code.KEYCODE_TV_POWER),
+    INPUT_TV(Code.KEYCODE_TV_INPUT),
+    BD_TOP_MENU(Code.KEYCODE_BD_TOP_MENU),
+    BD_MENU(Code.KEYCODE_BD_POPUP_MENU),
+    EJECT(Code.KEYCODE_EJECT),
+    AUDIO(Code.KEYCODE_AUDIO),
+    SETTINGS(Code.KEYCODE_SETTINGS),
+    CAPTIONS(Code.KEYCODE_INSERT);
 
-    POWER_TV {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_TV_POWER);
-        }
-    },
-
-    INPUT_TV {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_TV_INPUT);
-        }
-    },
-
-    BD_TOP_MENU {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_BD_TOP_MENU);
-        }
-    },
+    /**
+     * Key code sent by this action.
+     */
+    private final Code code;
 
-    BD_MENU {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_BD_POPUP_MENU);
-        }
-    },
+    /**
+     * Key action sent by this action, or {@code null} if this action sends a
+     * full key press.
+     */
+    private final Key.Action keyAction;
 
-    EJECT {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_EJECT);
-        }
-    },
+    private Action(Code code) {
+        this(code, null);
+    }
 
-    AUDIO {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_AUDIO);
-        }
-    },
+    private Action(Code code, Key.Action keyAction) {
+        this.code = code;
+        this.keyAction = keyAction;
+    }
 
-    SETTINGS {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_SETTINGS);
-        }
-    },
+    /**
+     * Returns the key code sent by this action.
+     */
+    public Code getCode() {
+        return code;
+    }
 
-    CAPTIONS {
-    @Override
-        public void execute(AnymoteSender anymoteProxy) {
-            anymoteProxy.sendKeyPress(Code.KEYCODE_INSERT);
-        }
-    };
+    /**
+     * Returns the key action sent by this action, or {@code null} if this
+     * action sends a full key press, i.e. a down and an up event.
+     */
+    public Key.Action getKeyAction() {
+        return keyAction;
+    }
 
     /**
      * Executes the action.
      * 
      * @param anymoteProxy interface to the remote box
      */
-    public abstract void execute(AnymoteSender anymoteProxy);
+    public void execute(AnymoteSender anymoteProxy) {
+        if (keyAction == null) {
+            anymoteProxy.sendKeyPress(code);
+        } else {
+            anymoteProxy.sendKey(code, keyAction);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads of the Anymote client.
+ * <p>
+ * Keep-alive, discovery and key repeat timers all run as messages on one
+ * shared looper, so they are ordered with respect to each other and wake up a
+ * single thread, which must never block. Writing to a socket blocks while it
+ * is stalled, so each sender writes on a thread of its own. Work that blocks,
+ * such as TLS handshakes, pairing and tearing down connections, runs on a
+ * pool of workers. The pool
+ * starts a thread whenever all the workers are busy, so that a task waiting
+ * for the user or for a TV that is off never holds up the others, and its
+ * threads exit when idle. Loops that block for as long as they run, such as
+ * receiving discovery answers, get a thread of their own.
+ */
+public final class EventLoop {
+
+    /** Time an idle worker waits for a task before it exits */
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static Looper looper;
+    private static ExecutorService workers;
+
+    private EventLoop() {
+    }
+
+    /**
+     * Returns the looper of the event loop thread, starting it on first use.
+     */
+    public static synchronized Looper getLooper() {
+        if (looper == null) {
+            HandlerThread thread =
+                    new HandlerThread("AnymoteEventLoop", Process.THREAD_PRIORITY_FOREGROUND);
+            thread.start();
+            looper = thread.getLooper();
+        }
+        return looper;
+    }
+
+    /**
+     * Returns the pool that runs blocking work.
+     */
+    public static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            // A task is handed to an idle worker, or to a new one.
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task,
+                                    "AnymoteWorker-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            workers = pool;
+        }
+        return workers;
+    }
+
+    /**
+     * Starts a task that blocks for as long as it runs on a thread of its
+     * own, rather than keeping a worker.
+     * 
+     * @param name the name of the thread.
+     * @param task the task.
+     * @return the started thread.
+     */
+    public static Thread startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
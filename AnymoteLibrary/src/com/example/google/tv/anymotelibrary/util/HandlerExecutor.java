@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executes tasks on the thread of a {@link Looper}.
+ */
+public final class HandlerExecutor implements Executor {
+
+    private static HandlerExecutor mainThreadExecutor;
+
+    private final Handler handler;
+
+    /**
+     * Constructor.
+     *
+     * @param looper the looper to run tasks on.
+     */
+    public HandlerExecutor(Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Returns an executor for the main thread of the application.
+     */
+    public static synchronized HandlerExecutor mainThread() {
+        if (mainThreadExecutor == null) {
+            mainThreadExecutor = new HandlerExecutor(Looper.getMainLooper());
+        }
+        return mainThreadExecutor;
+    }
+
+    public void execute(Runnable command) {
+        if (!handler.post(command)) {
+            throw new RejectedExecutionException(handler.getLooper() + " is exiting");
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import com.google.anymote.Key;
+import com.google.anymote.Key.Code;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A precompiled sequence of key events, e.g. to navigate the TV settings.
+ * <p>
+ * The events are grouped in segments: the events of a segment are sent back
+ * to back, and consecutive segments are separated by a minimum gap. Macros are
+ * immutable and can be sent any number of times with
+ * {@code AnymoteSender#sendMacro(KeyMacro)}.
+ */
+public final class KeyMacro {
+
+    private final Code[] codes;
+    private final Key.Action[] actions;
+
+    /**
+     * Index of the first event of each segment, followed by the number of
+     * events.
+     */
+    private final int[] segmentStarts;
+
+    /**
+     * Time of each segment from the start of the macro, in milliseconds.
+     */
+    private final long[] segmentOffsets;
+
+    private KeyMacro(Code[] codes, Key.Action[] actions, int[] segmentStarts,
+            long[] segmentOffsets) {
+        this.codes = codes;
+        this.actions = actions;
+        this.segmentStarts = segmentStarts;
+        this.segmentOffsets = segmentOffsets;
+    }
+
+    /**
+     * Returns the number of key events in the macro.
+     */
+    public int getEventCount() {
+        return codes.length;
+    }
+
+    /**
+     * Returns the key code of an event.
+     *
+     * @param event index of the event.
+     */
+    public Code getCode(int event) {
+        return codes[event];
+    }
+
+    /**
+     * Returns the key action of an event.
+     *
+     * @param event index of the event.
+     */
+    public Key.Action getAction(int event) {
+        return actions[event];
+    }
+
+    /**
+     * Returns the number of segments in the macro.
+     */
+    public int getSegmentCount() {
+        return segmentOffsets.length;
+    }
+
+    /**
+     * Returns the index of the first event of a segment.
+     *
+     * @param segment index of the segment.
+     */
+    public int getSegmentStart(int segment) {
+        return segmentStarts[segment];
+    }
+
+    /**
+     * Returns the index following the last event of a segment.
+     *
+     * @param segment index of the segment.
+     */
+    public int getSegmentEnd(int segment) {
+        return segmentStarts[segment + 1];
+    }
+
+    /**
+     * Returns the minimum time between the start of the macro and a segment.
+     *
+     * @param segment index of the segment.
+     * @return offset in milliseconds.
+     */
+    public long getSegmentOffset(int segment) {
+        return segmentOffsets[segment];
+    }
+
+    /**
+     * Returns the minimum time it takes to send the macro.
+     *
+     * @return duration in milliseconds.
+     */
+    public long getDuration() {
+        return segmentOffsets.length > 0 ? segmentOffsets[segmentOffsets.length - 1] : 0;
+    }
+
+    /**
+     * Declares or records a {@link KeyMacro}.
+     */
+    public static final class Builder {
+        private final List<Code> codes = new ArrayList<Code>();
+        private final List<Key.Action> actions = new ArrayList<Key.Action>();
+        private final List<Integer> segmentStarts = new ArrayList<Integer>();
+        private final List<Long> segmentOffsets = new ArrayList<Long>();
+
+        /**
+         * Gap to wait before the next event.
+         */
+        private long pendingGap;
+
+        /**
+         * Time of the last recorded event, or {@code 0} if nothing was
+         * recorded.
+         */
+        private long lastRecordTime;
+
+        /**
+         * Adds an action.
+         *
+         * @param action the action to add.
+         * @return this builder.
+         */
+        public Builder action(Action action) {
+            if (action.getKeyAction() == null) {
+                return press(action.getCode());
+            }
+            return key(action.getCode(), action.getKeyAction());
+        }
+
+        /**
+         * Adds a key press, i.e. a down and an up event.
+         *
+         * @param code the key code.
+         * @return this builder.
+         */
+        public Builder press(Code code) {
+            key(code, Key.Action.DOWN);
+            return key(code, Key.Action.UP);
+        }
+
+        /**
+         * Adds a key event.
+         *
+         * @param code the key code.
+         * @param action the key up/down action.
+         * @return this builder.
+         */
+        public Builder key(Code code, Key.Action action) {
+            if (segmentStarts.isEmpty() || pendingGap > 0) {
+                long offset = segmentOffsets.isEmpty()
+                        ? 0 : segmentOffsets.get(segmentOffsets.size() - 1);
+                segmentStarts.add(codes.size());
+                segmentOffsets.add(offset + pendingGap);
+                pendingGap = 0;
+            }
+            codes.add(code);
+            actions.add(action);
+            return this;
+        }
+
+        /**
+         * Adds a minimum gap before the next event.
+         *
+         * @param gapMs the gap in milliseconds.
+         * @return this builder.
+         */
+        public Builder pause(long gapMs) {
+            if (gapMs < 0) {
+                throw new IllegalArgumentException("Negative gap: " + gapMs);
+            }
+            pendingGap += gapMs;
+            return this;
+        }
+
+        /**
+         * Records an action as it is performed by the user. The time elapsed
+         * since the previously recorded action becomes the gap between both.
+         *
+         * @param action the action to record.
+         * @return this builder.
+         */
+        public Builder record(Action action) {
+            long now = SystemClock.uptimeMillis();
+            if (lastRecordTime != 0) {
+                pause(now - lastRecordTime);
+            }
+            lastRecordTime = now;
+            return action(action);
+        }
+
+        /**
+         * Compiles the events added so far.
+         *
+         * @return the macro.
+         */
+        public KeyMacro build() {
+            int segmentCount = segmentOffsets.size();
+            int[] starts = new int[segmentCount + 1];
+            long[] offsets = new long[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                starts[i] = segmentStarts.get(i);
+                offsets[i] = segmentOffsets.get(i);
+            }
+            starts[segmentCount] = codes.size();
+            return new KeyMacro(codes.toArray(new Code[codes.size()]),
+                    actions.toArray(new Key.Action[actions.size()]), starts, offsets);
+        }
+    }
+}
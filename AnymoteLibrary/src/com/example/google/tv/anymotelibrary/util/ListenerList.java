@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * A set of listeners, each called on its own {@link Executor}.
+ * <p>
+ * Listeners can be added and removed from any thread, including from a
+ * callback. Events are delivered asynchronously, so the thread that dispatches
+ * them is never blocked by a listener, and a listener removed before an event
+ * is delivered does not receive it.
+ *
+ * @param <L> type of the listeners.
+ */
+public final class ListenerList<L> {
+
+    /**
+     * Calls one listener method.
+     *
+     * @param <L> type of the listeners.
+     */
+    public interface Event<L> {
+        /**
+         * Delivers the event to a listener, on the listener's executor.
+         *
+         * @param listener the listener.
+         */
+        void deliver(L listener);
+    }
+
+    private static final class Registration<L> {
+        final L listener;
+        final Executor executor;
+        volatile boolean removed;
+
+        Registration(L listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration<L>> registrations =
+            new CopyOnWriteArrayList<Registration<L>>();
+
+    /**
+     * Adds a listener. A listener that is already in the list is not added
+     * again.
+     *
+     * @param listener the listener.
+     * @param executor executor the listener is called on.
+     */
+    public synchronized void add(L listener, Executor executor) {
+        if (listener == null || executor == null) {
+            throw new NullPointerException();
+        }
+        if (indexOf(listener) < 0) {
+            registrations.add(new Registration<L>(listener, executor));
+        }
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener.
+     * @return {@code true} if the listener was in the list.
+     */
+    public synchronized boolean remove(L listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return false;
+        }
+        registrations.remove(index).removed = true;
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if there is no listener, i.e. events need not be
+     * created.
+     */
+    public boolean isEmpty() {
+        return registrations.isEmpty();
+    }
+
+    /**
+     * Delivers an event to all the listeners.
+     *
+     * @param event the event.
+     */
+    public void dispatch(final Event<L> event) {
+        for (final Registration<L> registration : registrations) {
+            registration.executor.execute(new Runnable() {
+                public void run() {
+                    if (!registration.removed) {
+                        event.deliver(registration.listener);
+                    }
+                }
+            });
+        }
+    }
+
+    private int indexOf(L listener) {
+        for (int i = 0; i < registrations.size(); i++) {
+            if (registrations.get(i).listener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed by whoever receives the result, e.g. when a
+ * reply arrives from the TV. Only the first completion counts.
+ *
+ * @param <V> type of the result.
+ */
+public final class ResultFuture<V> implements Future<V> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private V result;
+    private Throwable exception;
+    private boolean cancelled;
+    private Runnable cancelListener;
+
+    /**
+     * Sets the task run when the future is cancelled, e.g. to forget a
+     * request nobody waits for anymore. It runs on the thread that cancels,
+     * or at once if the future is already cancelled. Replaces the previous
+     * one.
+     *
+     * @param listener the task, or {@code null} for none.
+     */
+    public void setCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelListener = listener;
+                return;
+            }
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Completes the future with a result.
+     *
+     * @param value the result.
+     * @return {@code false} if the future was already completed.
+     */
+    public boolean set(V value) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            result = value;
+            done.countDown();
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future with a failure.
+     *
+     * @param throwable the cause of the failure.
+     * @return {@code false} if the future was already completed.
+     */
+    public boolean setException(Throwable throwable) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            exception = throwable;
+            done.countDown();
+        }
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final Runnable listener;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+            listener = cancelListener;
+            cancelListener = null;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized V getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return result;
+    }
+}
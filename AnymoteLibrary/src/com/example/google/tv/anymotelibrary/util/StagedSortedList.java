@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Google Inc.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.google.tv.anymotelibrary.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sorted list without duplicates whose changes are staged, and only become
+ * visible when {@link #applyChanges()} is called.
+ * <p>
+ * This is for list adapters, which must not change the data a list view reads
+ * until they notify it: changes are staged as they come and applied right
+ * before the notification. The visible items are only copied once per
+ * {@link #applyChanges()}, when the staged items are merged in.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @param <T> the type of the items, ordered by their natural order.
+ */
+public final class StagedSortedList<T extends Comparable<? super T>> {
+
+    /** Visible items, sorted */
+    private List<T> items = new ArrayList<T>();
+
+    /** Staged items, sorted */
+    private final List<T> staged = new ArrayList<T>();
+
+    /** Whether the staged items replace the visible ones */
+    private boolean replacing;
+
+    /**
+     * Stages an item to add.
+     *
+     * @param item the item.
+     * @return {@code false} if an equal item is already in the list or
+     *         staged.
+     */
+    public boolean add(T item) {
+        if (!replacing && Collections.binarySearch(items, item) >= 0) {
+            return false;
+        }
+        int index = Collections.binarySearch(staged, item);
+        if (index >= 0) {
+            return false;
+        }
+        staged.add(-index - 1, item);
+        return true;
+    }
+
+    /**
+     * Stages the replacement of all the items, discarding staged additions.
+     *
+     * @param newItems the new items, in any order; duplicates are dropped.
+     */
+    public void replaceAll(Collection<? extends T> newItems) {
+        staged.clear();
+        replacing = true;
+        staged.addAll(newItems);
+        Collections.sort(staged);
+        for (int i = staged.size() - 1; i > 0; i--) {
+            if (staged.get(i).compareTo(staged.get(i - 1)) == 0) {
+                staged.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if changes are staged.
+     */
+    public boolean hasChanges() {
+        return replacing || !staged.isEmpty();
+    }
+
+    /**
+     * Makes the staged changes visible.
+     *
+     * @return {@code true} if changes were staged.
+     */
+    public boolean applyChanges() {
+        if (!hasChanges()) {
+            return false;
+        }
+        if (replacing) {
+            items = new ArrayList<T>(staged);
+            staged.clear();
+            replacing = false;
+            return true;
+        }
+        List<T> merged = new ArrayList<T>(items.size() + staged.size());
+        int i = 0;
+        int j = 0;
+        while (i < items.size() && j < staged.size()) {
+            if (items.get(i).compareTo(staged.get(j)) <= 0) {
+                merged.add(items.get(i++));
+            } else {
+                merged.add(staged.get(j++));
+            }
+        }
+        merged.addAll(items.subList(i, items.size()));
+        merged.addAll(staged.subList(j, staged.size()));
+        items = merged;
+        staged.clear();
+        return true;
+    }
+
+    /**
+     * Returns the number of visible items.
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * Returns a visible item.
+     *
+     * @param index the index of the item, in order.
+     */
+    public T get(int index) {
+        return items.get(index);
+    }
+}
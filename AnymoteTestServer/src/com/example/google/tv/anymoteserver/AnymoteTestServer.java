@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import com.google.anymote.Key;
+import com.google.anymote.Key.Code;
+import com.google.anymote.common.AnymoteFactory;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.server.RequestReceiver;
+import com.google.polo.exception.PoloException;
+import com.google.polo.pairing.PairingContext;
+import com.google.polo.pairing.PairingListener;
+import com.google.polo.pairing.PairingSession;
+import com.google.polo.pairing.ServerPairingSession;
+import com.google.polo.pairing.message.EncodingOption;
+import com.google.polo.ssl.DummyTrustManager;
+import com.google.polo.ssl.SslUtil;
+import com.google.polo.wire.PoloWireInterface;
+import com.google.polo.wire.WireFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Local stand-in for a Google TV, to run the Anymote library end to end
+ * without a TV.
+ * <p>
+ * The server listens on the pairing port ({@code port + 1}), where it pairs
+ * with any client as the output device, i.e. it reports the code the user
+ * would read on the TV screen, and on the Anymote port, where it records the
+ * events sent by clients. Pings are acknowledged by the Anymote server adapter
+ * as a real TV does. Both ports use TLS with a certificate generated at
+ * startup, and accept any client certificate.
+ * <p>
+ * The Anymote port can degrade the link with {@link LinkConditions}, to
+ * measure the client on a slow or lossy network.
+ * <p>
+ * Run {@link #main(String[])} for a standalone server that prints pairing
+ * codes and events. Clients running on Android versions that only speak TLS
+ * 1.0 need a JRE where that protocol is not disabled.
+ */
+public final class AnymoteTestServer {
+
+    /**
+     * Anymote port used by Google TV.
+     */
+    public static final int DEFAULT_PORT = 9551;
+
+    private static final String SERVER_NAME = "AnymoteTestServer";
+    private static final char[] KEY_PASSWORD = "".toCharArray();
+
+    /**
+     * Receives notifications from the server. Methods are called on the
+     * server threads.
+     */
+    public interface Listener {
+        /**
+         * A client is pairing; the code is what a TV would display.
+         *
+         * @param code the code the client must enter.
+         */
+        void onPairingCode(String code);
+
+        /**
+         * An event was received.
+         *
+         * @param event the event.
+         */
+        void onEvent(ReceivedEvent event);
+    }
+
+    private final int port;
+    private final LinkConditions conditions;
+    private final List<ReceivedEvent> events = new ArrayList<ReceivedEvent>();
+    private final Set<Socket> sockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger receivedCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final Object pairingSync = new Object();
+
+    private volatile Listener listener;
+    private volatile boolean running;
+    private ServerSocket pairingServerSocket;
+    private ServerSocket anymoteServerSocket;
+    private String pairingCode;
+
+    /**
+     * Constructor.
+     *
+     * @param port the Anymote port; pairing uses the next port.
+     * @param conditions conditions of the link on the Anymote port.
+     */
+    public AnymoteTestServer(int port, LinkConditions conditions) {
+        this.port = port;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener the listener, or {@code null}.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the Anymote port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the conditions of the link on the Anymote port.
+     */
+    public LinkConditions getConditions() {
+        return conditions;
+    }
+
+    /**
+     * Starts listening on both ports.
+     *
+     * @throws IOException if a port could not be opened.
+     * @throws GeneralSecurityException if the server certificate could not be
+     *             generated.
+     */
+    public synchronized void start() throws IOException, GeneralSecurityException {
+        if (running) {
+            return;
+        }
+        SSLContext sslContext = createSslContext();
+        pairingServerSocket = createServerSocket(sslContext, port + 1);
+        try {
+            anymoteServerSocket = createServerSocket(sslContext, port);
+        } catch (IOException e) {
+            pairingServerSocket.close();
+            throw e;
+        }
+        running = true;
+
+        startThread("PairingAcceptor", new Runnable() {
+            public void run() {
+                acceptPairingConnections(pairingServerSocket);
+            }
+        });
+        startThread("AnymoteAcceptor", new Runnable() {
+            public void run() {
+                acceptAnymoteConnections(anymoteServerSocket);
+            }
+        });
+    }
+
+    /**
+     * Stops listening and closes all connections.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(pairingServerSocket);
+        closeQuietly(anymoteServerSocket);
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        sockets.clear();
+    }
+
+    /**
+     * Returns the code of the latest pairing, or {@code null}.
+     */
+    public String getPairingCode() {
+        synchronized (pairingSync) {
+            return pairingCode;
+        }
+    }
+
+    /**
+     * Waits for a client to start pairing.
+     *
+     * @param timeoutMs maximum time to wait.
+     * @return the code the client must enter, or {@code null} on timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public String awaitPairingCode(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pairingSync) {
+            long remaining;
+            while (pairingCode == null
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                pairingSync.wait(remaining);
+            }
+            String code = pairingCode;
+            pairingCode = null;
+            return code;
+        }
+    }
+
+    /**
+     * Returns the events received so far, oldest first.
+     */
+    public List<ReceivedEvent> getEvents() {
+        synchronized (events) {
+            return new ArrayList<ReceivedEvent>(events);
+        }
+    }
+
+    /**
+     * Forgets the events received so far.
+     */
+    public void clearEvents() {
+        synchronized (events) {
+            events.clear();
+        }
+    }
+
+    /**
+     * Waits until at least {@code count} events were received.
+     *
+     * @param count number of events.
+     * @param timeoutMs maximum time to wait.
+     * @return {@code true} if the events were received in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitEvents(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (events) {
+            long remaining;
+            while (events.size() < count) {
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                events.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of messages received on the Anymote port, including
+     * pings and dropped messages.
+     */
+    public int getReceivedMessageCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * Returns the number of messages dropped by the link conditions.
+     */
+    public int getDroppedMessageCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of connections accepted on the Anymote port.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    private SSLContext createSslContext() throws GeneralSecurityException, IOException {
+        KeyPair keyPair = SslUtil.generateRsaKeyPair();
+        X509Certificate certificate =
+                SslUtil.generateX509V3Certificate(keyPair, "CN=" + SERVER_NAME);
+        KeyStore keyStore = SslUtil.getEmptyKeyStore();
+        keyStore.setKeyEntry(SERVER_NAME, keyPair.getPrivate(), KEY_PASSWORD,
+                new Certificate[] {
+                        certificate });
+
+        KeyManagerFactory factory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, KEY_PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(factory.getKeyManagers(), new TrustManager[] {
+                new DummyTrustManager() }, null);
+        return sslContext;
+    }
+
+    private static ServerSocket createServerSocket(SSLContext sslContext, int port)
+            throws IOException {
+        SSLServerSocket socket =
+                (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+        // Polo pairing needs the client certificate.
+        socket.setNeedClientAuth(true);
+        return socket;
+    }
+
+    private void acceptPairingConnections(ServerSocket serverSocket) {
+        while (running) {
+            final SSLSocket socket;
+            try {
+                socket = (SSLSocket) serverSocket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            sockets.add(socket);
+            startThread("Pairing", new Runnable() {
+                public void run() {
+                    pair(socket);
+                }
+            });
+        }
+    }
+
+    private void pair(SSLSocket socket) {
+        try {
+            PairingContext context = PairingContext.fromSslSocket(socket, true);
+            PoloWireInterface protocol = WireFormat.PROTOCOL_BUFFERS.getWireInterface(context);
+            ServerPairingSession session =
+                    new ServerPairingSession(protocol, context, SERVER_NAME);
+
+            EncodingOption hexEnc =
+                    new EncodingOption(EncodingOption.EncodingType.ENCODING_HEXADECIMAL, 4);
+            session.addInputEncoding(hexEnc);
+            session.addOutputEncoding(hexEnc);
+            session.doPair(new PairingListenerImpl());
+        } catch (PoloException e) {
+            log("Pairing failed: " + e);
+        } catch (IOException e) {
+            log("Pairing failed: " + e);
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptAnymoteConnections(ServerSocket serverSocket) {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                break;
+            }
+            sockets.add(socket);
+            final int connectionId = connectionCount.incrementAndGet();
+            try {
+                OutputStream out = socket.getOutputStream();
+                if (!conditions.isPerfect()) {
+                    out = new ShapedOutputStream(out, conditions);
+                }
+                AnymoteFactory.getServerAdapter(new RequestReceiverImpl(connectionId),
+                        new ShapedInputStream(socket.getInputStream(), conditions,
+                                receivedCount, droppedCount),
+                        out, new ErrorListener() {
+                            public void onIoError(String message, Throwable exception) {
+                                log("Connection #" + connectionId + " closed: " + message);
+                                sockets.remove(socket);
+                                closeQuietly(socket);
+                            }
+                        });
+            } catch (IOException e) {
+                sockets.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void record(ReceivedEvent event) {
+        synchronized (events) {
+            events.add(event);
+            events.notifyAll();
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onEvent(event);
+        }
+    }
+
+    /**
+     * Records the events received on one connection.
+     */
+    private final class RequestReceiverImpl implements RequestReceiver {
+        private final int connectionId;
+
+        RequestReceiverImpl(int connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        public void onKeyEvent(Code keycode, Key.Action action) {
+            record(ReceivedEvent.key(connectionId, keycode, action));
+        }
+
+        public void onMouseEvent(int xDelta, int yDelta) {
+            record(ReceivedEvent.mouseMove(connectionId, xDelta, yDelta));
+        }
+
+        public void onMouseWheel(int xScroll, int yScroll) {
+            record(ReceivedEvent.mouseWheel(connectionId, xScroll, yScroll));
+        }
+
+        public void onData(String type, String data) {
+            record(ReceivedEvent.data(connectionId, type, data));
+        }
+
+        public void onConnect(ConnectInfo connectInfo) {
+            record(ReceivedEvent.connect(connectionId, connectInfo.getDeviceName()));
+        }
+
+        public boolean onFling(String uri) {
+            record(ReceivedEvent.fling(connectionId, uri));
+            return true;
+        }
+    }
+
+    /**
+     * Plays the output device role: publishes the code instead of displaying
+     * it.
+     */
+    private final class PairingListenerImpl implements PairingListener {
+        public void onSessionCreated(PairingSession session) {
+        }
+
+        public void onPerformInputDeviceRole(PairingSession session) {
+            // Only the client can enter the code.
+            session.teardown();
+        }
+
+        public void onPerformOutputDeviceRole(PairingSession session, byte[] gamma) {
+            String code = session.getEncoder().encodeToString(gamma);
+            synchronized (pairingSync) {
+                pairingCode = code;
+                pairingSync.notifyAll();
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onPairingCode(code);
+            }
+        }
+
+        public void onSessionEnded(PairingSession session) {
+        }
+
+        public void onLogMessage(LogLevel level, String message) {
+        }
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, SERVER_NAME + "-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Object closeable) {
+        try {
+            if (closeable instanceof Socket) {
+                ((Socket) closeable).close();
+            } else if (closeable instanceof ServerSocket) {
+                ((ServerSocket) closeable).close();
+            }
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    private static void log(String message) {
+        System.err.println(SERVER_NAME + ": " + message);
+    }
+
+    /**
+     * Runs a standalone server until the process is killed.
+     *
+     * @param args {@code [--port N] [--latency MS] [--jitter MS]
+     *            [--bandwidth BYTES_PER_S] [--drop RATE] [--seed N]}
+     */
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        LinkConditions.Builder builder = new LinkConditions.Builder();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String name = args[i];
+                String value = args[i + 1];
+                if ("--port".equals(name)) {
+                    port = Integer.parseInt(value);
+                } else if ("--latency".equals(name)) {
+                    builder.setLatency(Long.parseLong(value));
+                } else if ("--jitter".equals(name)) {
+                    builder.setJitter(Long.parseLong(value));
+                } else if ("--bandwidth".equals(name)) {
+                    builder.setBandwidth(Long.parseLong(value));
+                } else if ("--drop".equals(name)) {
+                    builder.setDropRate(Double.parseDouble(value));
+                } else if ("--seed".equals(name)) {
+                    builder.setSeed(Long.parseLong(value));
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: " + SERVER_NAME + " [--port N] [--latency MS] [--jitter MS]"
+                    + " [--bandwidth BYTES_PER_S] [--drop RATE] [--seed N]");
+            System.exit(2);
+        }
+
+        final AnymoteTestServer server = new AnymoteTestServer(port, builder.build());
+        server.setListener(new Listener() {
+            public void onPairingCode(String code) {
+                System.out.println("Pairing code: " + code);
+            }
+
+            public void onEvent(ReceivedEvent event) {
+                System.out.println(event);
+            }
+        });
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        System.out.println(SERVER_NAME + " listening on port " + port + " (pairing on "
+                + (port + 1) + "), " + server.getConditions());
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import com.google.anymote.Key.Action;
+import com.google.anymote.Key.Code;
+import com.google.anymote.Messages.DataList;
+import com.google.anymote.Messages.FlingResult;
+import com.google.anymote.common.AnymoteFactory;
+import com.google.anymote.common.ConnectInfo;
+import com.google.anymote.common.ErrorListener;
+import com.google.anymote.device.DeviceAdapter;
+import com.google.anymote.device.MessageReceiver;
+import com.google.polo.ssl.DummyTrustManager;
+import com.google.polo.ssl.SslUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Soak test of the connection lifecycle against an {@link AnymoteTestServer}
+ * in the same JVM: connects and disconnects thousands of times, and fails if
+ * the threads, file descriptors or heap of the process keep growing.
+ * <p>
+ * Each cycle does what the library does for a connection: a TLS connection
+ * with a client certificate and a connect timeout, an Anymote device adapter
+ * with its reader thread, a connect message, a few keys, a ping that must be
+ * acknowledged, then stopping the adapter and closing the socket. Both ends
+ * run here, so a leak on either side shows. Stopping an adapter waits for its
+ * reader thread, so a cycle takes about a quarter of a second and the default
+ * 2000 cycles about ten minutes.
+ * <p>
+ * The connecting task and sender of the library need the Android runtime
+ * and are not run; this covers the socket, TLS and protocol layers they are
+ * built on.
+ * <p>
+ * Prints {@code cycle,threads,fds,heap_kb} samples as CSV, then
+ * {@code PASS} or {@code FAIL}; the exit status is 1 on failure.
+ */
+public final class ConnectionSoak {
+
+    private static final int DEFAULT_PORT = AnymoteTestServer.DEFAULT_PORT + 100;
+    private static final int DEFAULT_CYCLES = 2000;
+
+    /** Cycles run before the baseline is taken, to load classes and warm up */
+    private static final int WARMUP_CYCLES = 50;
+
+    private static final int SAMPLE_INTERVAL = 250;
+    private static final int KEYS_PER_CYCLE = 5;
+    private static final int CONNECT_TIMEOUT_MS = 5 * 1000;
+    private static final long EVENT_TIMEOUT_MS = 5 * 1000;
+
+    /** Time the threads of closed connections have to exit */
+    private static final long SETTLE_TIMEOUT_MS = 10 * 1000;
+
+    /** Growth tolerated over the baseline, for threads of the JVM itself */
+    private static final int MAX_THREAD_GROWTH = 2;
+    private static final int MAX_FD_GROWTH = 8;
+    private static final long MAX_HEAP_GROWTH_KB = 8 * 1024;
+
+    private static final char[] KEY_PASSWORD = "".toCharArray();
+
+    private final AnymoteTestServer server;
+    private final SSLContext sslContext;
+    private final InetSocketAddress address;
+
+    /**
+     * Resources of the process at some point in time.
+     */
+    static final class Usage {
+        final int threads;
+        final int fds;
+        final long heapKb;
+
+        Usage(int threads, int fds, long heapKb) {
+            this.threads = threads;
+            this.fds = fds;
+            this.heapKb = heapKb;
+        }
+
+        static Usage measure() {
+            // Several collections, so that finalizable sockets are freed too.
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                System.runFinalization();
+            }
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            String[] fds = new File("/proc/self/fd").list();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            return new Usage(threads, fds != null ? fds.length : -1, heap / 1024);
+        }
+
+        String toCsv(int cycle) {
+            return cycle + "," + threads + "," + fds + "," + heapKb;
+        }
+    }
+
+    ConnectionSoak(AnymoteTestServer server) throws Exception {
+        this.server = server;
+        sslContext = createClientSslContext();
+        address = new InetSocketAddress(InetAddress.getByName("localhost"), server.getPort());
+    }
+
+    private static SSLContext createClientSslContext() throws Exception {
+        KeyPair keyPair = SslUtil.generateRsaKeyPair();
+        X509Certificate certificate =
+                SslUtil.generateX509V3Certificate(keyPair, "CN=ConnectionSoak");
+        KeyStore keyStore = SslUtil.getEmptyKeyStore();
+        keyStore.setKeyEntry("ConnectionSoak", keyPair.getPrivate(), KEY_PASSWORD,
+                new Certificate[] {
+                        certificate });
+        KeyManagerFactory factory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, KEY_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(factory.getKeyManagers(), new TrustManager[] {
+                new DummyTrustManager() }, null);
+        return context;
+    }
+
+    /**
+     * Connects, sends a few events, checks they arrived and that a ping is
+     * acknowledged, and disconnects.
+     *
+     * @throws IOException if the cycle failed.
+     */
+    void runCycle() throws IOException, InterruptedException {
+        server.clearEvents();
+        final CountDownLatch acked = new CountDownLatch(1);
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+        DeviceAdapter adapter = null;
+        try {
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.startHandshake();
+            adapter = AnymoteFactory.getDeviceAdapter(new MessageReceiver() {
+                public void onAck() {
+                    acked.countDown();
+                }
+
+                public void onData(String type, String data) {
+                }
+
+                public void onDataList(DataList dataList) {
+                }
+
+                public void onFlingResult(FlingResult result, Integer sequenceNumber) {
+                }
+            }, socket.getInputStream(), socket.getOutputStream(), new ErrorListener() {
+                public void onIoError(String message, Throwable exception) {
+                    // Expected when the socket is closed.
+                }
+            });
+            adapter.sendConnect(new ConnectInfo("ConnectionSoak", 1));
+            for (int i = 0; i < KEYS_PER_CYCLE; i++) {
+                adapter.sendKeyEvent(Code.KEYCODE_DPAD_DOWN, Action.DOWN);
+                adapter.sendKeyEvent(Code.KEYCODE_DPAD_DOWN, Action.UP);
+            }
+            adapter.sendPing();
+            if (!acked.await(EVENT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Ping not acknowledged");
+            }
+            if (!server.awaitEvents(1 + 2 * KEYS_PER_CYCLE, EVENT_TIMEOUT_MS)) {
+                throw new IOException("Events not received");
+            }
+        } finally {
+            if (adapter != null) {
+                adapter.stop();
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * Waits for the resources of closed connections to be released.
+     *
+     * @param baseline the usage to get back to.
+     * @return the usage once back to the baseline, or at the timeout.
+     */
+    static Usage settle(Usage baseline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT_MS;
+        Usage usage = Usage.measure();
+        while (!isWithinBounds(baseline, usage) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            usage = Usage.measure();
+        }
+        return usage;
+    }
+
+    static boolean isWithinBounds(Usage baseline, Usage usage) {
+        return usage.threads <= baseline.threads + MAX_THREAD_GROWTH
+                && usage.fds <= baseline.fds + MAX_FD_GROWTH
+                && usage.heapKb <= baseline.heapKb + MAX_HEAP_GROWTH_KB;
+    }
+
+    /**
+     * Runs the soak test.
+     *
+     * @param args {@code [--cycles N] [--port N]}
+     */
+    public static void main(String[] args) throws Exception {
+        int cycles = DEFAULT_CYCLES;
+        int port = DEFAULT_PORT;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String name = args[i];
+                String value = args[i + 1];
+                if ("--cycles".equals(name)) {
+                    cycles = Integer.parseInt(value);
+                } else if ("--port".equals(name)) {
+                    port = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ConnectionSoak [--cycles N] [--port N]");
+            System.exit(2);
+        }
+
+        AnymoteTestServer server =
+                new AnymoteTestServer(port, new LinkConditions.Builder().build());
+        server.start();
+        boolean passed;
+        try {
+            ConnectionSoak soak = new ConnectionSoak(server);
+            for (int i = 0; i < WARMUP_CYCLES; i++) {
+                soak.runCycle();
+            }
+            Usage baseline = settle(Usage.measure());
+            System.out.println("cycle,threads,fds,heap_kb");
+            System.out.println(baseline.toCsv(0));
+            for (int cycle = 1; cycle <= cycles; cycle++) {
+                soak.runCycle();
+                if (cycle % SAMPLE_INTERVAL == 0) {
+                    System.out.println(Usage.measure().toCsv(cycle));
+                }
+            }
+            Usage end = settle(baseline);
+            System.out.println(end.toCsv(cycles));
+            passed = isWithinBounds(baseline, end)
+                    && server.getConnectionCount() == WARMUP_CYCLES + cycles;
+            System.out.println((passed ? "PASS" : "FAIL") + ": " + cycles + " cycles, threads "
+                    + baseline.threads + " -> " + end.threads + ", fds " + baseline.fds + " -> "
+                    + end.fds + ", heap " + baseline.heapKb + " -> " + end.heapKb + " KB, "
+                    + server.getConnectionCount() + " connections");
+        } finally {
+            server.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
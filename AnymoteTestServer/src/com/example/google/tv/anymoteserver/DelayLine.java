@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import java.util.Random;
+
+/**
+ * Computes when chunks of data sent over one direction of a shaped link are
+ * delivered. A chunk first waits for the link to be free, takes the time its
+ * size needs at the configured bandwidth, then travels for the latency plus
+ * some jitter. Chunks are delivered in order.
+ */
+final class DelayLine {
+
+    private final LinkConditions conditions;
+    private final Random random;
+
+    /**
+     * Time at which the last chunk finishes being put on the link.
+     */
+    private long linkFreeNanos;
+
+    /**
+     * Delivery time of the last chunk.
+     */
+    private long lastDeliveryNanos;
+
+    DelayLine(LinkConditions conditions) {
+        this.conditions = conditions;
+        random = conditions.newRandom();
+    }
+
+    /**
+     * Schedules a chunk that is sent now.
+     *
+     * @param length size of the chunk, in bytes.
+     * @return time the chunk is delivered, in {@link System#nanoTime()} units.
+     */
+    synchronized long schedule(int length) {
+        long now = System.nanoTime();
+        long sent = now;
+        long bytesPerSecond = conditions.getBytesPerSecond();
+        if (bytesPerSecond > 0) {
+            linkFreeNanos = Math.max(now, linkFreeNanos) + length * 1000000000L / bytesPerSecond;
+            sent = linkFreeNanos;
+        }
+        long delay = conditions.getLatencyNanos();
+        long jitter = conditions.getJitterNanos();
+        if (jitter > 0) {
+            delay = Math.max(0, delay + (long) ((random.nextDouble() * 2 - 1) * jitter));
+        }
+        lastDeliveryNanos = Math.max(sent + delay, lastDeliveryNanos);
+        return lastDeliveryNanos;
+    }
+
+    /**
+     * Returns {@code true} if the next message should be dropped.
+     */
+    synchronized boolean shouldDrop() {
+        double dropRate = conditions.getDropRate();
+        return dropRate > 0 && random.nextDouble() < dropRate;
+    }
+
+    /**
+     * Sleeps until the given time.
+     *
+     * @param deliveryNanos time in {@link System#nanoTime()} units.
+     */
+    static void sleepUntil(long deliveryNanos) throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = deliveryNanos - System.nanoTime()) > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
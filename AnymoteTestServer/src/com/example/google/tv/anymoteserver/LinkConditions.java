@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import java.util.Random;
+
+/**
+ * Artificial network conditions applied to the Anymote port of the test
+ * server: latency and jitter on each direction, a bandwidth cap, and a rate of
+ * messages from the client that are dropped before the server sees them.
+ * <p>
+ * Instances are immutable and created with a {@link Builder}.
+ */
+public final class LinkConditions {
+
+    /**
+     * Conditions of a perfect link.
+     */
+    public static final LinkConditions NONE = new Builder().build();
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final long bytesPerSecond;
+    private final double dropRate;
+    private final long seed;
+
+    private LinkConditions(Builder builder) {
+        latencyNanos = builder.latencyMs * 1000000L;
+        jitterNanos = builder.jitterMs * 1000000L;
+        bytesPerSecond = builder.bytesPerSecond;
+        dropRate = builder.dropRate;
+        seed = builder.seed;
+    }
+
+    /**
+     * Returns the one-way latency added to each direction, in nanoseconds.
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Returns the maximum random deviation from the latency, in nanoseconds.
+     */
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * Returns the bandwidth of each direction in bytes per second, or
+     * {@code 0} if unlimited.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the probability for a message from the client to be dropped.
+     */
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    /**
+     * Returns a random generator for one direction of a connection. Runs with
+     * the same seed drop and delay the same messages.
+     */
+    Random newRandom() {
+        return new Random(seed);
+    }
+
+    /**
+     * Returns {@code true} if no condition is set, i.e. streams do not need to
+     * be shaped.
+     */
+    boolean isPerfect() {
+        return latencyNanos == 0 && jitterNanos == 0 && bytesPerSecond == 0 && dropRate == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("latency=%dms jitter=%dms bandwidth=%s drop=%.3f",
+                latencyNanos / 1000000, jitterNanos / 1000000,
+                bytesPerSecond == 0 ? "unlimited" : bytesPerSecond + "B/s", dropRate);
+    }
+
+    /**
+     * Builds {@link LinkConditions}.
+     */
+    public static final class Builder {
+        private long latencyMs;
+        private long jitterMs;
+        private long bytesPerSecond;
+        private double dropRate;
+        private long seed = 1;
+
+        /**
+         * Sets the one-way latency added to each direction.
+         *
+         * @param latencyMs latency in milliseconds.
+         * @return this builder.
+         */
+        public Builder setLatency(long latencyMs) {
+            if (latencyMs < 0) {
+                throw new IllegalArgumentException("Negative latency: " + latencyMs);
+            }
+            this.latencyMs = latencyMs;
+            return this;
+        }
+
+        /**
+         * Sets the maximum random deviation from the latency. The latency of
+         * each message is uniformly distributed in
+         * {@code [latency - jitter, latency + jitter]}, but messages are never
+         * reordered.
+         *
+         * @param jitterMs jitter in milliseconds.
+         * @return this builder.
+         */
+        public Builder setJitter(long jitterMs) {
+            if (jitterMs < 0) {
+                throw new IllegalArgumentException("Negative jitter: " + jitterMs);
+            }
+            this.jitterMs = jitterMs;
+            return this;
+        }
+
+        /**
+         * Sets the bandwidth of each direction.
+         *
+         * @param bytesPerSecond bandwidth in bytes per second, {@code 0} for
+         *            unlimited.
+         * @return this builder.
+         */
+        public Builder setBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Negative bandwidth: " + bytesPerSecond);
+            }
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets the probability for a message from the client to be dropped.
+         * A dropped message is neither recorded nor acknowledged.
+         *
+         * @param dropRate probability between {@code 0} and {@code 1}.
+         * @return this builder.
+         */
+        public Builder setDropRate(double dropRate) {
+            if (dropRate < 0 || dropRate > 1) {
+                throw new IllegalArgumentException("Drop rate not in [0, 1]: " + dropRate);
+            }
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        /**
+         * Sets the seed of the random jitter and drops.
+         *
+         * @param seed the seed.
+         * @return this builder.
+         */
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Returns the conditions.
+         */
+        public LinkConditions build() {
+            return new LinkConditions(this);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import com.google.anymote.Key;
+import com.google.anymote.Key.Code;
+
+/**
+ * An event received by the test server from a client.
+ */
+public final class ReceivedEvent {
+
+    /**
+     * Type of a received event.
+     */
+    public enum Type {
+        KEY,
+        MOUSE_MOVE,
+        MOUSE_WHEEL,
+        DATA,
+        CONNECT,
+        FLING
+    }
+
+    private final Type type;
+    private final long timeNanos;
+    private final int connectionId;
+    private final Code keyCode;
+    private final Key.Action keyAction;
+    private final int x;
+    private final int y;
+    private final String text;
+
+    private ReceivedEvent(Type type, int connectionId, Code keyCode, Key.Action keyAction, int x,
+            int y, String text) {
+        this.type = type;
+        this.timeNanos = System.nanoTime();
+        this.connectionId = connectionId;
+        this.keyCode = keyCode;
+        this.keyAction = keyAction;
+        this.x = x;
+        this.y = y;
+        this.text = text;
+    }
+
+    static ReceivedEvent key(int connectionId, Code keyCode, Key.Action keyAction) {
+        return new ReceivedEvent(Type.KEY, connectionId, keyCode, keyAction, 0, 0, null);
+    }
+
+    static ReceivedEvent mouseMove(int connectionId, int x, int y) {
+        return new ReceivedEvent(Type.MOUSE_MOVE, connectionId, null, null, x, y, null);
+    }
+
+    static ReceivedEvent mouseWheel(int connectionId, int x, int y) {
+        return new ReceivedEvent(Type.MOUSE_WHEEL, connectionId, null, null, x, y, null);
+    }
+
+    static ReceivedEvent data(int connectionId, String type, String data) {
+        return new ReceivedEvent(Type.DATA, connectionId, null, null, 0, 0, type + ":" + data);
+    }
+
+    static ReceivedEvent connect(int connectionId, String deviceName) {
+        return new ReceivedEvent(Type.CONNECT, connectionId, null, null, 0, 0, deviceName);
+    }
+
+    static ReceivedEvent fling(int connectionId, String uri) {
+        return new ReceivedEvent(Type.FLING, connectionId, null, null, 0, 0, uri);
+    }
+
+    /**
+     * Returns the type of the event.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the time the server received the event, in
+     * {@link System#nanoTime()} units.
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    /**
+     * Returns the number of the connection the event was received on,
+     * starting at {@code 1}.
+     */
+    public int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * Returns the key code of a {@link Type#KEY} event.
+     */
+    public Code getKeyCode() {
+        return keyCode;
+    }
+
+    /**
+     * Returns the key action of a {@link Type#KEY} event.
+     */
+    public Key.Action getKeyAction() {
+        return keyAction;
+    }
+
+    /**
+     * Returns the horizontal delta of a mouse event.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the vertical delta of a mouse event.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the text carried by the event: {@code type:data} for a
+     * {@link Type#DATA} event, the device name for {@link Type#CONNECT} and
+     * the URI for {@link Type#FLING}.
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case KEY:
+                return "#" + connectionId + " KEY " + keyCode + " " + keyAction;
+            case MOUSE_MOVE:
+            case MOUSE_WHEEL:
+                return "#" + connectionId + " " + type + " " + x + "," + y;
+            default:
+                return "#" + connectionId + " " + type + " " + text;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stream of the messages sent by a client, delayed and thinned out according
+ * to {@link LinkConditions}.
+ * <p>
+ * A pump thread reads whole length-delimited Anymote messages from the socket
+ * as soon as they arrive, so that the delays of consecutive messages overlap as
+ * they would on a real link. Each message is either dropped or scheduled on a
+ * {@link DelayLine}, and only becomes readable once delivered.
+ */
+final class ShapedInputStream extends InputStream {
+
+    /**
+     * Largest message accepted; anything bigger means the stream is not
+     * Anymote.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    /**
+     * A delivered message, including its length prefix.
+     */
+    private static final class Chunk {
+        final long deliveryNanos;
+        final byte[] data;
+        final IOException error;
+
+        Chunk(long deliveryNanos, byte[] data, IOException error) {
+            this.deliveryNanos = deliveryNanos;
+            this.data = data;
+            this.error = error;
+        }
+    }
+
+    private final InputStream in;
+    private final DelayLine delayLine;
+    private final AtomicInteger receivedCount;
+    private final AtomicInteger droppedCount;
+    private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+
+    /**
+     * Chunk being read, and position of the next byte in it.
+     */
+    private Chunk current;
+    private int position;
+
+    /**
+     * Constructor.
+     *
+     * @param in socket input stream.
+     * @param conditions conditions of the link.
+     * @param receivedCount incremented for each message received from the
+     *            client, dropped or not.
+     * @param droppedCount incremented for each dropped message.
+     */
+    ShapedInputStream(InputStream in, LinkConditions conditions, AtomicInteger receivedCount,
+            AtomicInteger droppedCount) {
+        this.in = in;
+        this.delayLine = new DelayLine(conditions);
+        this.receivedCount = receivedCount;
+        this.droppedCount = droppedCount;
+        Thread pump = new Thread(new Runnable() {
+            public void run() {
+                pump();
+            }
+        }, "ShapedInputStream");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    private void pump() {
+        IOException error = null;
+        try {
+            byte[] data;
+            while ((data = readMessage()) != null) {
+                receivedCount.incrementAndGet();
+                if (delayLine.shouldDrop()) {
+                    droppedCount.incrementAndGet();
+                    continue;
+                }
+                chunks.add(new Chunk(delayLine.schedule(data.length), data, null));
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        chunks.add(new Chunk(delayLine.schedule(0), null, error));
+    }
+
+    /**
+     * Reads a message with its varint length prefix.
+     *
+     * @return the message, or {@code null} at the end of the stream.
+     */
+    private byte[] readMessage() throws IOException {
+        byte[] prefix = new byte[5];
+        int prefixLength = 0;
+        int length = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                if (prefixLength == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated message");
+            }
+            if (prefixLength == prefix.length) {
+                throw new IOException("Malformed message length");
+            }
+            length |= (b & 0x7F) << (7 * prefixLength);
+            prefix[prefixLength++] = (byte) b;
+        } while ((b & 0x80) != 0);
+
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length: " + length);
+        }
+        byte[] data = new byte[prefixLength + length];
+        System.arraycopy(prefix, 0, data, 0, prefixLength);
+        int position = prefixLength;
+        while (position < data.length) {
+            int read = in.read(data, position, data.length - position);
+            if (read < 0) {
+                throw new EOFException("Truncated message");
+            }
+            position += read;
+        }
+        return data;
+    }
+
+    /**
+     * Waits until a chunk with unread bytes is delivered.
+     *
+     * @return {@code false} at the end of the stream.
+     */
+    private boolean awaitData() throws IOException {
+        while (current == null || (current.data != null && position == current.data.length)) {
+            try {
+                current = chunks.take();
+                position = 0;
+                DelayLine.sleepUntil(current.deliveryNanos);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (current.data == null) {
+            if (current.error != null) {
+                throw current.error;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!awaitData()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (!awaitData()) {
+            return -1;
+        }
+        int read = Math.min(count, current.data.length - position);
+        System.arraycopy(current.data, position, buffer, offset, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (current == null || current.data == null
+                || System.nanoTime() < current.deliveryNanos) {
+            return 0;
+        }
+        return current.data.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
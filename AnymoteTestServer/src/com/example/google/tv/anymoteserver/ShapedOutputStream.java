@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.example.google.tv.anymoteserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Stream of the responses sent to a client, delayed according to
+ * {@link LinkConditions}. Writes return immediately; a pump thread writes each
+ * chunk to the socket once it is delivered. Responses are never dropped, since
+ * writes are not aligned on message boundaries.
+ */
+final class ShapedOutputStream extends OutputStream {
+
+    /**
+     * Chunk queued by {@link #close()}.
+     */
+    private static final byte[] END = new byte[0];
+
+    private static final class Chunk {
+        final long deliveryNanos;
+        final byte[] data;
+
+        Chunk(long deliveryNanos, byte[] data) {
+            this.deliveryNanos = deliveryNanos;
+            this.data = data;
+        }
+    }
+
+    private final OutputStream out;
+    private final DelayLine delayLine;
+    private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+    private volatile IOException error;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param out socket output stream.
+     * @param conditions conditions of the link.
+     */
+    ShapedOutputStream(OutputStream out, LinkConditions conditions) {
+        this.out = out;
+        this.delayLine = new DelayLine(conditions);
+        Thread pump = new Thread(new Runnable() {
+            public void run() {
+                pump();
+            }
+        }, "ShapedOutputStream");
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    private void pump() {
+        try {
+            while (true) {
+                Chunk chunk = chunks.take();
+                if (chunk.data == END) {
+                    out.close();
+                    return;
+                }
+                DelayLine.sleepUntil(chunk.deliveryNanos);
+                out.write(chunk.data);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            error = new IOException("Interrupted");
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {
+                (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        byte[] data = new byte[count];
+        System.arraycopy(buffer, offset, data, 0, count);
+        chunks.add(new Chunk(delayLine.schedule(count), data));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            chunks.add(new Chunk(0, END));
+        }
+    }
+}